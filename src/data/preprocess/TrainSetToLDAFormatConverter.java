@@ -26,6 +26,9 @@ import util.StatUtil;
  * 2. nounIdx.txt - rows of stemmed english nouns sorted alphabetically
  * 3. vnIdx.txt - rows of verbId:int , nounId:int sorted w.r.t verbId, then nounId
  * 4. vnIdxSmall.txt - a subset of vnIdx.txt - just (v,n) pairs where v is one of the top 10 most frequent verbs.
+ * 5. vnCountIdx.txt - rows of verbId:int , nounId:int , count:int - vnIdx.txt with each run of identical rows
+ *    collapsed into one row, for learning.lda.AggregatedGibbsCorpus
+ * 6. vnCountIdxSmall.txt - the same for vnIdxSmall.txt
  * The ids start at 1.
  * 
  * @author sjonany
@@ -74,6 +77,8 @@ public class TrainSetToLDAFormatConverter {
 		PrintWriter nounWriter = new PrintWriter(outputDir + "nounIdx.txt");
 		PrintWriter vnWriter = new PrintWriter(outputDir + "vnIdx.txt");
 		PrintWriter vnSubsetWriter = new PrintWriter(outputDir + "vnIdxSmall.txt");
+		PrintWriter vnCountWriter = new PrintWriter(outputDir + "vnCountIdx.txt");
+		PrintWriter vnCountSubsetWriter = new PrintWriter(outputDir + "vnCountIdxSmall.txt");
 		
 		final Map<String, Integer> nounToId = new HashMap<String, Integer>();
 		final Map<String, Integer> verbToId = new HashMap<String, Integer>();
@@ -131,22 +136,18 @@ public class TrainSetToLDAFormatConverter {
 		}
 		System.out.println("Verb subset = " + verbSubset);
 		
+		// every token once in vnIdx.txt, and every pair once with its count in vnCountIdx.txt
 		for(Pair<String, String> vnPair : vnPairs) {
 			String str = verbToId.get(vnPair.getKey()) + "," + nounToId.get(vnPair.getValue());
 			for(int count = 0; count < vnToCount.get(vnPair); count++) {
 				vnWriter.println(str);
 			}
-		}
-		
-		for(Pair<String, String> vnPair : vnPairs) {
-			String str = verbToId.get(vnPair.getKey()) + "," + nounToId.get(vnPair.getValue());
-			for(int count = 0; count < vnToCount.get(vnPair); count++) {
-				vnWriter.println(str);
-			}
+			vnCountWriter.println(str + "," + vnToCount.get(vnPair));
 			if(verbSubset.contains(vnPair.getKey())) {
 				for(int count = 0; count < vnToCount.get(vnPair); count++) {
 					vnSubsetWriter.println(str);
 				}
+				vnCountSubsetWriter.println(str + "," + vnToCount.get(vnPair));
 			}
 		}
 		
@@ -155,5 +156,7 @@ public class TrainSetToLDAFormatConverter {
 		nounWriter.close();
 		vnWriter.close();
 		vnSubsetWriter.close();
+		vnCountWriter.close();
+		vnCountSubsetWriter.close();
 	}
 }
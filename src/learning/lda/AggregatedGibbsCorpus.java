@@ -0,0 +1,89 @@
+package learning.lda;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The distinct (v,n) pairs of a corpus together with their frequencies, instead of one token per occurrence.
+ *
+ * Reads either the "verbId,nounId,count" rows of vnCountIdx files, or the "verbId,nounId" rows of vnIdx files,
+ * in which case consecutive identical rows are merged (vnIdx files are sorted, so every pair is one run).
+ * Ids are one-based in the files and zero-based here. The corpus is read-only once loaded.
+ */
+public class AggregatedGibbsCorpus {
+	private int[] verbs;
+	private int[] nouns;
+	private int[] counts;
+	private int size;
+	private long tokenCount;
+
+	private AggregatedGibbsCorpus(int capacity) {
+		verbs = new int[capacity];
+		nouns = new int[capacity];
+		counts = new int[capacity];
+	}
+
+	// number of distinct pairs
+	public int size() {
+		return size;
+	}
+
+	// number of tokens, i.e. the sum of the pair counts
+	public long getTokenCount() {
+		return tokenCount;
+	}
+
+	public int getVerb(int i) {
+		return verbs[i];
+	}
+
+	public int getNoun(int i) {
+		return nouns[i];
+	}
+
+	public int getCount(int i) {
+		return counts[i];
+	}
+
+	public static AggregatedGibbsCorpus load(String path) throws IOException {
+		AggregatedGibbsCorpus corpus = new AggregatedGibbsCorpus(1 << 16);
+		BufferedReader in = new BufferedReader(new FileReader(path));
+		try {
+			String line = in.readLine();
+			while(line != null) {
+				String[] toks = line.split(",");
+				int v = Integer.parseInt(toks[0].trim()) - 1;
+				int n = Integer.parseInt(toks[1].trim()) - 1;
+				int count = toks.length > 2 ? Integer.parseInt(toks[2].trim()) : 1;
+				corpus.add(v, n, count);
+				line = in.readLine();
+			}
+		} finally {
+			in.close();
+		}
+		corpus.verbs = Arrays.copyOf(corpus.verbs, corpus.size);
+		corpus.nouns = Arrays.copyOf(corpus.nouns, corpus.size);
+		corpus.counts = Arrays.copyOf(corpus.counts, corpus.size);
+		System.out.println("loaded " + corpus.size + " distinct pairs, " + corpus.tokenCount + " tuples from " + path);
+		return corpus;
+	}
+
+	private void add(int v, int n, int count) {
+		tokenCount += count;
+		if(size > 0 && verbs[size - 1] == v && nouns[size - 1] == n) {
+			counts[size - 1] += count;
+			return;
+		}
+		if(size == verbs.length) {
+			verbs = Arrays.copyOf(verbs, 2 * size);
+			nouns = Arrays.copyOf(nouns, 2 * size);
+			counts = Arrays.copyOf(counts, 2 * size);
+		}
+		verbs[size] = v;
+		nouns[size] = n;
+		counts[size] = count;
+		size++;
+	}
+}
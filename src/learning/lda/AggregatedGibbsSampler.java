@@ -0,0 +1,197 @@
+package learning.lda;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Collapsed Gibbs sampling over an AggregatedGibbsCorpus: all copies of a (v,n) pair are resampled together.
+ *
+ * Each pair keeps a sparse histogram of the topics of its copies instead of one z per copy. To resample a pair,
+ * all of its copies are removed from the counts, the conditional
+ *   p(t) ~ (CVT[v][t] + alpha) * (CWT[n][t] + gamma) / (numNounsInTopic[t] + N * gamma)
+ * is computed once, and the new histogram is drawn from Multinomial(count, p).
+ * This is a blocked update that ignores the effect the copies of a pair have on each other within one
+ * sweep. It is exact for pairs seen once, and costs O(T + count * log T) per pair instead of O(count * T).
+ */
+public class AggregatedGibbsSampler {
+	private final AggregatedGibbsCorpus corpus;
+	private final GibbsCounts counts;
+	private final Random r;
+	private final int T;
+	private final GibbsLogLikelihood logLikelihood;
+
+	// histTopics[i][j] = topic of the j-th bucket of pair i's histogram, histCounts[i][j] = # copies in it
+	private final int[][] histTopics;
+	private final int[][] histCounts;
+
+	// scratch space, reused across pairs
+	private final DenseTopicKernel kernel;
+	private final int[] newCounts;
+	private final int[] touched;
+	private final int[] nounScratch;
+	private final int[] verbScratch;
+
+	/**
+	 * @param logLikelihood - kept up to date with the moves of every sweep
+	 */
+	public AggregatedGibbsSampler(AggregatedGibbsCorpus corpus, GibbsCounts counts, Random r,
+			GibbsLogLikelihood logLikelihood) {
+		this.corpus = corpus;
+		this.counts = counts;
+		this.r = r;
+		this.logLikelihood = logLikelihood;
+		T = counts.getTopicCount();
+		histTopics = new int[corpus.size()][];
+		histCounts = new int[corpus.size()][];
+		kernel = new DenseTopicKernel(counts);
+		newCounts = new int[T];
+		touched = new int[T];
+		nounScratch = new int[T];
+		verbScratch = new int[T];
+	}
+
+	/**
+	 * Assign every copy of every pair to a uniformly random topic, and add them to the (empty) counts.
+	 */
+	public void initialize() {
+		// the copies are added to the counts without going through logLikelihood, the caller recomputes it
+		for(int i = 0; i < corpus.size(); i++) {
+			int count = corpus.getCount(i);
+			int numTouched = 0;
+			for(int c = 0; c < count; c++) {
+				int t = r.nextInt(T);
+				if(newCounts[t] == 0) {
+					touched[numTouched++] = t;
+				}
+				newCounts[t]++;
+			}
+			storeHistogram(i, numTouched);
+			addHistogram(i, 1, false);
+		}
+	}
+
+	public void sweep() {
+		// the counts may have been replaced since the last sweep, e.g. by GibbsCheckpoint.restore
+		kernel.resync();
+		for(int i = 0; i < corpus.size(); i++) {
+			int v = corpus.getVerb(i);
+			int n = corpus.getNoun(i);
+			int count = corpus.getCount(i);
+
+			addHistogram(i, -1, true);
+			int[] cwt = counts.CWT.readRow(n, nounScratch);
+			int[] cvt = counts.CVT.readRow(v, verbScratch);
+			int nb = counts.CWT.rowOffset(n);
+			int vb = counts.CVT.rowOffset(v);
+
+			kernel.fill(cwt, nb, cvt, vb);
+			int numTouched = 0;
+			for(int c = 0; c < count; c++) {
+				int t = kernel.draw(r.nextDouble());
+				if(newCounts[t] == 0) {
+					touched[numTouched++] = t;
+				}
+				newCounts[t]++;
+			}
+			storeHistogram(i, numTouched);
+			addHistogram(i, 1, true);
+		}
+	}
+
+	/**
+	 * Write the topic histogram of every pair, one pair per row in corpus order, as "topic:count" entries.
+	 */
+	public void writeHistograms(String path) throws FileNotFoundException {
+		PrintWriter printWriter = new PrintWriter(path);
+		for(int i = 0; i < corpus.size(); i++) {
+			for(int j = 0; j < histTopics[i].length; j++) {
+				if(j > 0) {
+					printWriter.print("\t");
+				}
+				printWriter.print(histTopics[i][j] + ":" + histCounts[i][j]);
+			}
+			printWriter.println();
+		}
+		printWriter.close();
+	}
+
+	/**
+	 * Binary form of the histograms, for GibbsCheckpoint. Only the histograms are written, not the counts.
+	 */
+	public void saveHistograms(DataOutput out) throws IOException {
+		out.writeInt(corpus.size());
+		for(int i = 0; i < corpus.size(); i++) {
+			out.writeInt(histTopics[i].length);
+			for(int j = 0; j < histTopics[i].length; j++) {
+				out.writeInt(histTopics[i][j]);
+				out.writeInt(histCounts[i][j]);
+			}
+		}
+	}
+
+	/**
+	 * Replace the histograms by the ones written by saveHistograms. The counts are left alone.
+	 */
+	public void loadHistograms(DataInput in) throws IOException {
+		int size = in.readInt();
+		if(size != corpus.size()) {
+			throw new IOException("Histograms for " + size + " pairs, expected " + corpus.size());
+		}
+		for(int i = 0; i < size; i++) {
+			int length = in.readInt();
+			histTopics[i] = new int[length];
+			histCounts[i] = new int[length];
+			for(int j = 0; j < length; j++) {
+				histTopics[i][j] = in.readInt();
+				histCounts[i][j] = in.readInt();
+			}
+		}
+	}
+
+	/**
+	 * Move the histogram accumulated in newCounts[touched[0..numTouched)] into pair i, and clear newCounts.
+	 */
+	private void storeHistogram(int i, int numTouched) {
+		Arrays.sort(touched, 0, numTouched);
+		int[] topics = histTopics[i];
+		if(topics == null || topics.length != numTouched) {
+			topics = histTopics[i] = new int[numTouched];
+			histCounts[i] = new int[numTouched];
+		}
+		for(int j = 0; j < numTouched; j++) {
+			int t = touched[j];
+			topics[j] = t;
+			histCounts[i][j] = newCounts[t];
+			newCounts[t] = 0;
+		}
+	}
+
+	/**
+	 * Add (sign = 1) or remove (sign = -1) the copies of pair i to or from the counts.
+	 * @param track - whether to update logLikelihood, whose numNounsWithVerb terms assume that every removal
+	 * of a pair is followed by adding it back
+	 */
+	private void addHistogram(int i, int sign, boolean track) {
+		int v = corpus.getVerb(i);
+		int n = corpus.getNoun(i);
+		int[] topics = histTopics[i];
+		int[] hist = histCounts[i];
+		for(int j = 0; j < topics.length; j++) {
+			int t = topics[j];
+			int delta = sign * hist[j];
+			if(track) {
+				logLikelihood.addTokens(v, n, t, delta);
+			}
+			counts.CWT.add(n, t, delta);
+			counts.CVT.add(v, t, delta);
+			counts.numNounsInTopic[t] += delta;
+			kernel.updateTopic(t);
+		}
+		counts.numNounsWithVerb[v] += sign * corpus.getCount(i);
+	}
+}
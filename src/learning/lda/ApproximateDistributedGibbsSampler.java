@@ -0,0 +1,335 @@
+package learning.lda;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import util.XoroshiroRandom;
+
+/**
+ * Approximate distributed LDA (AD-LDA, Newman et al. 2009) for CollapsedGibbsSampler.
+ *
+ * The (v,n) tokens are partitioned by verb across worker threads. A verb is owned by exactly one
+ * worker, so its CVT row and numNounsWithVerb entry are only ever touched by that worker and can be
+ * shared. CWT and numNounsInTopic are needed by every verb, so each worker samples against its own
+ * copy of them, and the copies are merged back into the global counts at the end of every sweep.
+ *
+ * The log-likelihood is tracked exactly: the CVT terms by the workers, since they own their verbs' rows,
+ * and the CWT terms by the merge, which sees every cell that changed during the sweep.
+ *
+ * Every worker has its own random number generator, reseeded from the caller's at the start of each
+ * sweep, so the workers never contend on a generator and the chain only depends on the state of the
+ * caller's generator.
+ */
+public class ApproximateDistributedGibbsSampler implements ParallelGibbsSampler {
+	private final GibbsCorpus corpus;
+	private final TopicAssignments z;
+
+	// global counts, shared with the caller
+	private final CountMatrix CWT;
+	private final int[] numNounsInTopic;
+	private final GibbsLogLikelihood logLikelihood;
+	private final double gamma;
+	private final double nGamma;
+
+	// workerRuns[p] = the [start, end) token ranges owned by worker p, flattened, see partitionByVerb
+	private final int[][] workerRuns;
+	// per-worker copies of CWT and numNounsInTopic, in sync with the global counts at the start of a sweep
+	private final CountMatrix[] localCWT;
+	private final int[][] localNumNounsInTopic;
+	private final TopicSampler[] samplers;
+	private final Random r;
+	private final Random[] workerRandoms;
+
+	private final ExecutorService executor;
+
+	public ApproximateDistributedGibbsSampler(GibbsCorpus corpus, TopicAssignments z,
+			GibbsCounts counts, GibbsOptions.SamplerKind samplerKind, int numThreads, Random r,
+			GibbsLogLikelihood logLikelihood) {
+		this.corpus = corpus;
+		this.z = z;
+		this.r = r;
+		this.CWT = counts.CWT;
+		this.numNounsInTopic = counts.numNounsInTopic;
+		this.logLikelihood = logLikelihood;
+		gamma = counts.gamma;
+		nGamma = counts.getNounCount() * counts.gamma;
+
+		workerRuns = partitionByVerb(corpus, counts.getVerbCount(), numThreads);
+		int numWorkers = workerRuns.length;
+		System.out.println("AD-LDA with " + numWorkers + " workers, tokens per worker = " + Arrays.toString(workerLoads()));
+
+		localCWT = new CountMatrix[numWorkers];
+		localNumNounsInTopic = new int[numWorkers][];
+		samplers = new TopicSampler[numWorkers];
+		workerRandoms = new Random[numWorkers];
+		for(int p = 0; p < numWorkers; p++) {
+			localCWT[p] = CWT.copy();
+			localNumNounsInTopic[p] = numNounsInTopic.clone();
+			GibbsCounts localCounts = new GibbsCounts(localCWT[p], counts.CVT, localNumNounsInTopic[p],
+					counts.numNounsWithVerb, counts.alpha, counts.gamma);
+			workerRandoms[p] = new XoroshiroRandom();
+			samplers[p] = CollapsedGibbsSampler.createTopicSampler(samplerKind, localCounts, workerRandoms[p]);
+		}
+
+		executor = Executors.newFixedThreadPool(numWorkers);
+	}
+
+	/**
+	 * One full Gibbs sweep over the corpus, followed by the merge of the per-worker counts.
+	 * When this returns, z and the global counts are consistent with each other.
+	 */
+	@Override
+	public void sweep() throws Exception {
+		for(Random workerRandom : workerRandoms) {
+			workerRandom.setSeed(r.nextLong());
+		}
+		List<Callable<Double>> tasks = new ArrayList<Callable<Double>>();
+		for(int p = 0; p < workerRuns.length; p++) {
+			final int worker = p;
+			tasks.add(new Callable<Double>() {
+				@Override
+				public Double call() {
+					return sweepWorker(worker);
+				}
+			});
+		}
+		double topicDelta = runAll(tasks);
+		double nounDelta = reconcile();
+		logLikelihood.add(nounDelta, topicDelta);
+	}
+
+	@Override
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * @return the change of the CVT terms of the log-likelihood
+	 */
+	private double sweepWorker(int p) {
+		TopicSampler sampler = samplers[p];
+		sampler.startSweep();
+		double topicDelta = 0.0;
+		int[] runs = workerRuns[p];
+		for(int k = 0; k < runs.length; k += 2) {
+			for(int i = runs[k]; i < runs[k + 1]; i++) {
+				int v = corpus.getVerb(i);
+				int tau = z.get(i);
+				int newTopic = sampler.resample(v, corpus.getNoun(i), tau);
+				if(newTopic != tau) {
+					z.set(i, newTopic);
+					topicDelta += logLikelihood.verbMoveDelta(v, tau, newTopic);
+				}
+			}
+		}
+		return topicDelta;
+	}
+
+	/**
+	 * global += sum_p (local_p - global), then every local copy is reset to the new global counts.
+	 * Each worker's copy only differs from the global counts by the moves of its own tokens,
+	 * so the merged counts are exactly the counts of the current z.
+	 * The workers' samplers are resynced since their counts changed under them.
+	 * @return the change of the CWT and numNounsInTopic terms of the log-likelihood
+	 */
+	private double reconcile() throws Exception {
+		// the rows of CWT are independent, so the merge is split into stretches of rows
+		int numWorkers = workerRuns.length;
+		int numRows = CWT.getRowCount();
+		int chunk = (numRows + numWorkers - 1) / numWorkers;
+
+		List<Callable<Double>> tasks = new ArrayList<Callable<Double>>();
+		for(int start = 0; start < numRows; start += chunk) {
+			final int lo = start;
+			final int hi = Math.min(numRows, start + chunk);
+			tasks.add(new Callable<Double>() {
+				@Override
+				public Double call() {
+					return mergeRows(lo, hi);
+				}
+			});
+		}
+		double nounDelta = runAll(tasks);
+
+		nounDelta -= merge(numNounsInTopic, localNumNounsInTopic, 0, numNounsInTopic.length, nGamma);
+
+		for(TopicSampler sampler : samplers) {
+			sampler.resync();
+		}
+		return nounDelta;
+	}
+
+	/**
+	 * The merge of the rows [lo, hi) of CWT, like merge but a row at a time, whatever the layout of the rows.
+	 * Every local copy ends up with the layout of the global row, so the workers enumerate their rows the same
+	 * way whether or not the counts were restored from a checkpoint.
+	 * @return sum over the merged cells of lgamma(new count + gamma) - lgamma(old count + gamma)
+	 */
+	private double mergeRows(int lo, int hi) {
+		int cols = CWT.getColumnCount();
+		int numWorkers = localCWT.length;
+		int[] globalScratch = new int[cols];
+		int[][] localScratch = new int[numWorkers][cols];
+		int[][] localRows = new int[numWorkers][];
+		int[] localBases = new int[numWorkers];
+		int[] merged = new int[cols];
+		double logGammaDelta = 0.0;
+		for(int row = lo; row < hi; row++) {
+			int[] global = CWT.readRow(row, globalScratch);
+			int base = CWT.rowOffset(row);
+			System.arraycopy(global, base, merged, 0, cols);
+			for(int p = 0; p < numWorkers; p++) {
+				int[] local = localRows[p] = localCWT[p].readRow(row, localScratch[p]);
+				int localBase = localBases[p] = localCWT[p].rowOffset(row);
+				for(int c = 0; c < cols; c++) {
+					merged[c] += local[localBase + c] - global[base + c];
+				}
+			}
+
+			boolean changed = false;
+			for(int c = 0; c < cols; c++) {
+				if(merged[c] != global[base + c]) {
+					logGammaDelta += GibbsLogLikelihood.logGammaDelta(global[base + c], merged[c] - global[base + c], gamma);
+					changed = true;
+				}
+			}
+			if(changed) {
+				CWT.setRow(row, merged);
+			}
+
+			boolean dense = CWT.isDenseRow(row);
+			for(int p = 0; p < numWorkers; p++) {
+				boolean differs = localCWT[p].isDenseRow(row) != dense;
+				for(int c = 0; c < cols && !differs; c++) {
+					differs = localRows[p][localBases[p] + c] != merged[c];
+				}
+				if(differs) {
+					localCWT[p].setRow(row, merged, dense);
+				}
+			}
+		}
+		return logGammaDelta;
+	}
+
+	/**
+	 * @return sum over the merged cells of lgamma(new count + prior) - lgamma(old count + prior)
+	 */
+	static double merge(int[] global, int[][] local, int lo, int hi, double prior) {
+		double logGammaDelta = 0.0;
+		for(int i = lo; i < hi; i++) {
+			int merged = global[i];
+			for(int p = 0; p < local.length; p++) {
+				merged += local[p][i] - global[i];
+			}
+			if(merged != global[i]) {
+				logGammaDelta += GibbsLogLikelihood.logGammaDelta(global[i], merged - global[i], prior);
+			}
+			global[i] = merged;
+			for(int p = 0; p < local.length; p++) {
+				local[p][i] = merged;
+			}
+		}
+		return logGammaDelta;
+	}
+
+	/**
+	 * @return the sum of the tasks' results
+	 */
+	private double runAll(List<Callable<Double>> tasks) throws Exception {
+		// get() rethrows anything thrown by a worker
+		double sum = 0.0;
+		for(Future<Double> future : executor.invokeAll(tasks)) {
+			sum += future.get();
+		}
+		return sum;
+	}
+
+	private int[] workerLoads() {
+		int[] loads = new int[workerRuns.length];
+		for(int p = 0; p < loads.length; p++) {
+			int[] runs = workerRuns[p];
+			for(int k = 0; k < runs.length; k += 2) {
+				loads[p] += runs[k + 1] - runs[k];
+			}
+		}
+		return loads;
+	}
+
+	/**
+	 * Split the tokens into at most numWorkers groups such that all tokens of a verb are in the same group.
+	 * Verbs are handed out in decreasing order of frequency, each to the currently lightest worker.
+	 * A group is stored as the runs of consecutive tokens sharing a verb rather than as token indices,
+	 * which takes next to no memory on a corpus sorted by verb, even when the corpus itself is not on the heap.
+	 * @return [p] = start0, end0, start1, end1, ... - the [start, end) token ranges of worker p, in corpus order
+	 */
+	static int[][] partitionByVerb(GibbsCorpus corpus, int V, int numWorkers) {
+		final int[] verbCount = new int[V];
+		for(int i = 0; i < corpus.size(); i++) {
+			verbCount[corpus.getVerb(i)]++;
+		}
+
+		List<Integer> verbs = new ArrayList<Integer>();
+		for(int v = 0; v < V; v++) {
+			if(verbCount[v] > 0) {
+				verbs.add(v);
+			}
+		}
+		Collections.sort(verbs, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer v1, Integer v2) {
+				return verbCount[v2] - verbCount[v1];
+			}
+		});
+
+		numWorkers = Math.max(1, Math.min(numWorkers, verbs.size()));
+		int[] verbToWorker = new int[V];
+		int[] loads = new int[numWorkers];
+		for(int v : verbs) {
+			int lightest = 0;
+			for(int p = 1; p < numWorkers; p++) {
+				if(loads[p] < loads[lightest]) {
+					lightest = p;
+				}
+			}
+			verbToWorker[v] = lightest;
+			loads[lightest] += verbCount[v];
+		}
+
+		// first pass counts the runs of each worker, second pass fills them in
+		int[] numRuns = new int[numWorkers];
+		int[][] workerRuns = null;
+		for(int pass = 0; pass < 2; pass++) {
+			if(pass == 1) {
+				workerRuns = new int[numWorkers][];
+				for(int p = 0; p < numWorkers; p++) {
+					workerRuns[p] = new int[2 * numRuns[p]];
+				}
+				Arrays.fill(numRuns, 0);
+			}
+			int start = 0;
+			while(start < corpus.size()) {
+				int v = corpus.getVerb(start);
+				int end = start + 1;
+				while(end < corpus.size() && corpus.getVerb(end) == v) {
+					end++;
+				}
+				int p = verbToWorker[v];
+				if(pass == 1) {
+					workerRuns[p][2 * numRuns[p]] = start;
+					workerRuns[p][2 * numRuns[p] + 1] = end;
+				}
+				numRuns[p]++;
+				start = end;
+			}
+		}
+		return workerRuns;
+	}
+}
@@ -0,0 +1,71 @@
+package learning.lda;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The (v,n) tokens of a vnIdx file, parsed once and kept in memory, in file order.
+ */
+public class ArrayGibbsCorpus extends GibbsCorpus {
+	private int[] verbs;
+	private int[] nouns;
+	private int size;
+
+	private ArrayGibbsCorpus(int capacity) {
+		verbs = new int[capacity];
+		nouns = new int[capacity];
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public int getVerb(int i) {
+		return verbs[i];
+	}
+
+	@Override
+	public int getNoun(int i) {
+		return nouns[i];
+	}
+
+	/**
+	 * @param vnIdxPath - rows of one-based "verbId,nounId", see data.preprocess.TrainSetToLDAFormatConverter
+	 */
+	public static ArrayGibbsCorpus load(String vnIdxPath) throws IOException {
+		ArrayGibbsCorpus corpus = new ArrayGibbsCorpus(1 << 16);
+		BufferedReader in = new BufferedReader(new FileReader(vnIdxPath));
+		try {
+			String line = in.readLine();
+			while(line != null) {
+				int comma = line.indexOf(',');
+				int v = Integer.parseInt(line.substring(0, comma)) - 1;
+				int n = Integer.parseInt(line.substring(comma + 1).trim()) - 1;
+				corpus.add(v, n);
+				line = in.readLine();
+				if(corpus.size % 1000000 == 0) {
+					System.out.println("loaded " + corpus.size + " tuples from " + vnIdxPath);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		corpus.verbs = Arrays.copyOf(corpus.verbs, corpus.size);
+		corpus.nouns = Arrays.copyOf(corpus.nouns, corpus.size);
+		return corpus;
+	}
+
+	private void add(int v, int n) {
+		if(size == verbs.length) {
+			verbs = Arrays.copyOf(verbs, 2 * size);
+			nouns = Arrays.copyOf(nouns, 2 * size);
+		}
+		verbs[size] = v;
+		nouns[size] = n;
+		size++;
+	}
+}
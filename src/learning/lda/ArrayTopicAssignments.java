@@ -0,0 +1,28 @@
+package learning.lda;
+
+/**
+ * Topic assignments held on the heap, in a char[].
+ */
+public class ArrayTopicAssignments extends TopicAssignments {
+	private final char[] z;
+
+	public ArrayTopicAssignments(int size, int numTopics) {
+		checkTopicCount(numTopics);
+		z = new char[size];
+	}
+
+	@Override
+	public int size() {
+		return z.length;
+	}
+
+	@Override
+	public int get(int i) {
+		return z[i];
+	}
+
+	@Override
+	public void set(int i, int t) {
+		z[i] = (char) t;
+	}
+}
@@ -0,0 +1,215 @@
+package learning.lda;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Writes the betaAtIter / thetaAtIter snapshots of CollapsedGibbsSampler on a background thread.
+ *
+ * submit() only copies the counts into a staging buffer, which is a memcpy of CWT and CVT, and returns.
+ * The writer thread then derives beta and theta from the copy, adds them to cumBeta and cumTheta, or adds
+ * the copy to a CountAverage, and writes the files while the sampler moves on. There are two staging buffers, so one snapshot can be
+ * written while the next is staged. If the writer falls behind by more than that, submit() blocks
+ * until a buffer is free.
+ *
+ * cumBeta, cumTheta and the CountAverage belong to the writer thread until drain() returns, so callers must
+ * drain before reading them, e.g. for a checkpoint or the final average.
+ */
+public class BackgroundSnapshotWriter {
+	private static final int NUM_BUFFERS = 2;
+	// number of topics gathered at once when walking CWT topic by topic, 16 ints = one cache line per noun
+	static final int TOPIC_BLOCK = 16;
+
+	private final String baseDir;
+	private final GibbsOptions.SnapshotFormat format;
+	private final GibbsCounts counts;
+	private final double[][] cumBeta;
+	private final double[][] cumTheta;
+	private final CountAverage countAverage;
+
+	private final ExecutorService executor;
+	private final BlockingQueue<Staging> freeBuffers = new ArrayBlockingQueue<Staging>(NUM_BUFFERS);
+	private int numBuffers = 0;
+	private final Queue<Future<Void>> pending = new ArrayDeque<Future<Void>>();
+
+	// scratch space of the writer thread
+	private final int[] topicBlock;
+	private final int[] entryCols;
+	private final double[] entryValues;
+
+	/**
+	 * @param cumBeta, cumTheta - where the beta / theta estimates of the samples are summed, or null
+	 * @param countAverage - where the counts of the samples are summed, or null
+	 */
+	public BackgroundSnapshotWriter(String baseDir, GibbsOptions.SnapshotFormat format, GibbsCounts counts,
+			double[][] cumBeta, double[][] cumTheta, CountAverage countAverage) {
+		this.baseDir = baseDir;
+		this.format = format;
+		this.counts = counts;
+		this.cumBeta = cumBeta;
+		this.cumTheta = cumTheta;
+		this.countAverage = countAverage;
+
+		int N = counts.getNounCount();
+		int T = counts.getTopicCount();
+		topicBlock = new int[Math.min(TOPIC_BLOCK, T) * N];
+		entryCols = new int[Math.max(N, T)];
+		entryValues = new double[Math.max(N, T)];
+
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "snapshot-writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Stage the current counts as the snapshot of iteration iter, and write it in the background.
+	 * Blocks only while both staging buffers are still being written.
+	 */
+	public void submit(int iter) throws Exception {
+		reapFinished();
+		Staging staging = freeBuffers.poll();
+		if(staging == null && numBuffers < NUM_BUFFERS) {
+			// the buffers are allocated on first use, so they don't take memory during burnin
+			staging = new Staging();
+			numBuffers++;
+		} else if(staging == null) {
+			staging = freeBuffers.take();
+		}
+		staging.copyFrom(counts, iter);
+
+		final Staging job = staging;
+		pending.add(executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				try {
+					write(job);
+				} finally {
+					freeBuffers.add(job);
+				}
+				return null;
+			}
+		}));
+	}
+
+	/**
+	 * Wait until every submitted snapshot is written and accumulated.
+	 * Rethrows the first failure of the writer thread.
+	 */
+	public void drain() throws Exception {
+		while(!pending.isEmpty()) {
+			pending.poll().get();
+		}
+	}
+
+	public void close() throws Exception {
+		try {
+			drain();
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	// surface failures of finished snapshots without waiting for the others
+	private void reapFinished() throws Exception {
+		while(!pending.isEmpty() && pending.peek().isDone()) {
+			pending.poll().get();
+		}
+	}
+
+	private void write(Staging staging) throws Exception {
+		double gamma = counts.gamma;
+		double alpha = counts.alpha;
+		int T = counts.getTopicCount();
+		int N = counts.getNounCount();
+		int V = counts.getVerbCount();
+
+		SnapshotWriter snapshotWriter = SnapshotWriter.open(baseDir + "betaAtIter" + staging.iter, format, T, N);
+		try {
+			for(int t0 = 0; t0 < T; t0 += TOPIC_BLOCK) {
+				int t1 = Math.min(T, t0 + TOPIC_BLOCK);
+				staging.CWT.copyColumns(t0, t1, topicBlock);
+				for(int t = t0; t < t1; t++) {
+					int blockBase = (t - t0) * N;
+					double denom = staging.numNounsInTopic[t] + N * gamma;
+					double[] cumRow = cumBeta != null ? cumBeta[t] : null;
+					int numEntries = 0;
+					for(int n = 0; n < N; n++) {
+						int count = topicBlock[blockBase + n];
+						double curEnt = (count + gamma) / denom;
+						if(cumRow != null) {
+							cumRow[n] += curEnt;
+						}
+						if(count > 0) {
+							entryCols[numEntries] = n;
+							entryValues[numEntries++] = curEnt;
+						}
+					}
+					snapshotWriter.writeRow(gamma / denom, entryCols, entryValues, numEntries);
+				}
+			}
+		} finally {
+			snapshotWriter.close();
+		}
+
+		snapshotWriter = SnapshotWriter.open(baseDir + "thetaAtIter" + staging.iter, format, V, T);
+		try {
+			int[] verbScratch = new int[T];
+			for(int v = 0; v < V; v++) {
+				int[] cvt = staging.CVT.readRow(v, verbScratch);
+				int vBase = staging.CVT.rowOffset(v);
+				double denom = staging.numNounsWithVerb[v] + T * alpha;
+				double[] cumRow = cumTheta != null ? cumTheta[v] : null;
+				int numEntries = 0;
+				for(int t = 0; t < T; t++) {
+					int count = cvt[vBase + t];
+					double curEnt = (count + alpha) / denom;
+					if(cumRow != null) {
+						cumRow[t] += curEnt;
+					}
+					if(count > 0) {
+						entryCols[numEntries] = t;
+						entryValues[numEntries++] = curEnt;
+					}
+				}
+				snapshotWriter.writeRow(alpha / denom, entryCols, entryValues, numEntries);
+			}
+		} finally {
+			snapshotWriter.close();
+		}
+
+		if(countAverage != null) {
+			countAverage.add(staging.CWT, staging.CVT, staging.numNounsInTopic);
+		}
+	}
+
+	/**
+	 * A copy of the counts a snapshot is derived from, in the same layout as the counts of the chain.
+	 */
+	private class Staging {
+		final CountMatrix CWT = counts.CWT.copy();
+		final CountMatrix CVT = counts.CVT.copy();
+		final int[] numNounsInTopic = new int[counts.getTopicCount()];
+		final int[] numNounsWithVerb = new int[counts.getVerbCount()];
+		int iter;
+
+		void copyFrom(GibbsCounts source, int iter) {
+			CWT.copyFrom(source.CWT);
+			CVT.copyFrom(source.CVT);
+			System.arraycopy(source.numNounsInTopic, 0, numNounsInTopic, 0, numNounsInTopic.length);
+			System.arraycopy(source.numNounsWithVerb, 0, numNounsWithVerb, 0, numNounsWithVerb.length);
+			this.iter = iter;
+		}
+	}
+}
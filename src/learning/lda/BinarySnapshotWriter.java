@@ -0,0 +1,113 @@
+package learning.lda;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compact binary snapshot format, big-endian:
+ *   header: int MAGIC, int VERSION, int rows, int cols
+ *   each row: float base, int numEntries, then numEntries times (varint column delta, float value)
+ * A cell is base unless it is listed in the entries of its row. Column deltas are relative to the
+ * previous entry of the row (to 0 for the first one) and take 7 bits per byte, so a row with a few
+ * nonzero counts costs a few bytes per count, and even a fully dense row costs 5 bytes per cell,
+ * against ~20 for the text format.
+ * Values are stored as floats, which is plenty for probabilities that are only compared and multiplied.
+ */
+public class BinarySnapshotWriter extends SnapshotWriter {
+	public static final String EXTENSION = ".bin";
+
+	private static final int MAGIC = 0x4C444153;
+	private static final int VERSION = 1;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final DataOutputStream out;
+
+	public BinarySnapshotWriter(String path, int rows, int cols) throws IOException {
+		super(rows, cols);
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), BUFFER_SIZE));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(rows);
+		out.writeInt(cols);
+	}
+
+	@Override
+	public void writeRow(double base, int[] entryCols, double[] values, int numEntries) throws IOException {
+		out.writeFloat((float) base);
+		out.writeInt(numEntries);
+		int prev = 0;
+		for(int i = 0; i < numEntries; i++) {
+			writeVarInt(entryCols[i] - prev);
+			out.writeFloat((float) values[i]);
+			prev = entryCols[i];
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+
+	private void writeVarInt(int value) throws IOException {
+		while((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * @return whether path names a binary snapshot rather than a text one
+	 */
+	public static boolean isBinary(String path) {
+		return path.endsWith(EXTENSION);
+	}
+
+	/**
+	 * Read a whole snapshot back into a dense [rows][cols] matrix.
+	 */
+	public static double[][] read(String path) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), BUFFER_SIZE));
+		try {
+			if(in.readInt() != MAGIC) {
+				throw new IOException(path + " is not a binary snapshot");
+			}
+			int version = in.readInt();
+			if(version != VERSION) {
+				throw new IOException(path + " has unsupported version " + version);
+			}
+			int rows = in.readInt();
+			int cols = in.readInt();
+			double[][] matrix = new double[rows][cols];
+			for(double[] row : matrix) {
+				Arrays.fill(row, in.readFloat());
+				int numEntries = in.readInt();
+				int col = 0;
+				for(int i = 0; i < numEntries; i++) {
+					col += readVarInt(in);
+					row[col] = in.readFloat();
+				}
+			}
+			return matrix;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static int readVarInt(DataInputStream in) throws IOException {
+		int value = 0;
+		for(int shift = 0; ; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if((b & 0x80) == 0) {
+				return value;
+			}
+		}
+	}
+}
@@ -0,0 +1,278 @@
+package learning.lda;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import util.XoroshiroRandom;
+
+/**
+ * Block-diagonal parallel Gibbs sampling (Yan et al. 2009) for CollapsedGibbsSampler --parallel=blocks.
+ *
+ * The verbs and the nouns are both split into P blocks, which cuts the tokens into a P x P grid of cells.
+ * A sweep is P sub-epochs: in sub-epoch s, worker p samples the tokens of cell (verb block p, noun block
+ * (p + s) mod P). The cells of a sub-epoch share no verb and no noun, so every CVT and CWT row is touched by
+ * at most one worker at a time, and the workers update the global counts in place. Unlike
+ * ApproximateDistributedGibbsSampler there are no copies of CWT and no stale noun counts.
+ *
+ * With the mh sampler, the workers share one set of proposal tables, which they rebuild together at the
+ * start of every sweep, each a 1 / P share of the rows, and only read afterwards.
+ *
+ * numNounsInTopic is the only count every token needs. Each worker samples against its own copy of it, and
+ * the copies are merged at the end of every sub-epoch, so it is at most 1 / P of a sweep out of date.
+ *
+ * The log-likelihood is tracked exactly: the CVT and CWT terms by the workers, which own the rows they
+ * change, and the numNounsInTopic terms by the merge.
+ *
+ * Like AD-LDA, every worker has its own random number generator, reseeded from the caller's at the start of
+ * each sweep. The cells are fixed, so the chain only depends on the state of the caller's generator.
+ */
+public class BlockParallelGibbsSampler implements ParallelGibbsSampler {
+	private final GibbsCorpus corpus;
+	private final TopicAssignments z;
+	private final GibbsLogLikelihood logLikelihood;
+	private final int[] numNounsInTopic;
+	private final double nGamma;
+
+	// cells[p][q] = the tokens of verb block p and noun block q, in corpus order
+	private final int[][][] cells;
+	private final int[][] localNumNounsInTopic;
+	private final TopicSampler[] samplers;
+	// the proposals shared by the samplers with the mh sampler, otherwise null
+	private final MetropolisHastingsProposals proposals;
+	private final Random r;
+	private final Random[] workerRandoms;
+	// the changes of the CWT / CVT terms of the log-likelihood in the current sub-epoch, per worker
+	private final double[] nounDeltas;
+	private final double[] topicDeltas;
+
+	private final ExecutorService executor;
+
+	public BlockParallelGibbsSampler(GibbsCorpus corpus, TopicAssignments z, GibbsCounts counts,
+			GibbsOptions.SamplerKind samplerKind, int numThreads, Random r, GibbsLogLikelihood logLikelihood) {
+		this.corpus = corpus;
+		this.z = z;
+		this.r = r;
+		this.logLikelihood = logLikelihood;
+		numNounsInTopic = counts.numNounsInTopic;
+		nGamma = counts.getNounCount() * counts.gamma;
+
+		int[] verbCount = new int[counts.getVerbCount()];
+		int[] nounCount = new int[counts.getNounCount()];
+		for(int i = 0; i < corpus.size(); i++) {
+			verbCount[corpus.getVerb(i)]++;
+			nounCount[corpus.getNoun(i)]++;
+		}
+		int numBlocks = Math.max(1, Math.min(numThreads, Math.min(countNonzero(verbCount), countNonzero(nounCount))));
+		cells = partition(corpus, assignBlocks(verbCount, numBlocks), assignBlocks(nounCount, numBlocks), numBlocks);
+		System.out.println("block-parallel Gibbs with " + numBlocks + " workers, tokens per worker = "
+				+ Arrays.toString(workerLoads()) + ", parallel efficiency = " + efficiency());
+
+		localNumNounsInTopic = new int[numBlocks][];
+		samplers = new TopicSampler[numBlocks];
+		workerRandoms = new Random[numBlocks];
+		proposals = samplerKind == GibbsOptions.SamplerKind.MH ? new MetropolisHastingsProposals(counts, numBlocks) : null;
+		for(int p = 0; p < numBlocks; p++) {
+			localNumNounsInTopic[p] = numNounsInTopic.clone();
+			GibbsCounts localCounts = new GibbsCounts(counts.CWT, counts.CVT, localNumNounsInTopic[p],
+					counts.numNounsWithVerb, counts.alpha, counts.gamma);
+			workerRandoms[p] = new XoroshiroRandom();
+			if(proposals != null) {
+				samplers[p] = new MetropolisHastingsTopicSampler(localCounts, workerRandoms[p], proposals);
+			} else {
+				samplers[p] = CollapsedGibbsSampler.createTopicSampler(samplerKind, localCounts, workerRandoms[p]);
+			}
+		}
+		nounDeltas = new double[numBlocks];
+		topicDeltas = new double[numBlocks];
+
+		executor = Executors.newFixedThreadPool(numBlocks);
+	}
+
+	@Override
+	public void sweep() throws Exception {
+		int numBlocks = cells.length;
+		for(Random workerRandom : workerRandoms) {
+			workerRandom.setSeed(r.nextLong());
+		}
+
+		// samplers may read all of CWT here, so no worker may be writing yet
+		if(proposals != null) {
+			proposals.buildTopics();
+		}
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for(int p = 0; p < numBlocks; p++) {
+			final int worker = p;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					samplers[worker].startSweep();
+					if(proposals != null) {
+						proposals.buildRows(worker);
+					}
+					return null;
+				}
+			});
+		}
+		runAll(tasks);
+
+		for(int s = 0; s < numBlocks; s++) {
+			tasks.clear();
+			for(int p = 0; p < numBlocks; p++) {
+				final int worker = p;
+				final int[] cell = cells[p][(p + s) % numBlocks];
+				tasks.add(new Callable<Void>() {
+					@Override
+					public Void call() {
+						sweepCell(worker, cell);
+						return null;
+					}
+				});
+			}
+			runAll(tasks);
+
+			double nounDelta = 0.0;
+			double topicDelta = 0.0;
+			for(int p = 0; p < numBlocks; p++) {
+				nounDelta += nounDeltas[p];
+				topicDelta += topicDeltas[p];
+			}
+			nounDelta -= ApproximateDistributedGibbsSampler.merge(numNounsInTopic, localNumNounsInTopic, 0,
+					numNounsInTopic.length, nGamma);
+			logLikelihood.add(nounDelta, topicDelta);
+			for(TopicSampler sampler : samplers) {
+				sampler.resync();
+			}
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	private void sweepCell(int p, int[] cell) {
+		TopicSampler sampler = samplers[p];
+		double nounDelta = 0.0;
+		double topicDelta = 0.0;
+		for(int i : cell) {
+			int v = corpus.getVerb(i);
+			int n = corpus.getNoun(i);
+			int tau = z.get(i);
+			int newTopic = sampler.resample(v, n, tau);
+			if(newTopic != tau) {
+				z.set(i, newTopic);
+				nounDelta += logLikelihood.nounRowMoveDelta(n, tau, newTopic);
+				topicDelta += logLikelihood.verbMoveDelta(v, tau, newTopic);
+			}
+		}
+		nounDeltas[p] = nounDelta;
+		topicDeltas[p] = topicDelta;
+	}
+
+	private void runAll(List<Callable<Void>> tasks) throws Exception {
+		// get() rethrows anything thrown by a worker
+		for(Future<Void> future : executor.invokeAll(tasks)) {
+			future.get();
+		}
+	}
+
+	private int[] workerLoads() {
+		int[] loads = new int[cells.length];
+		for(int p = 0; p < cells.length; p++) {
+			for(int[] cell : cells[p]) {
+				loads[p] += cell.length;
+			}
+		}
+		return loads;
+	}
+
+	/**
+	 * The speedup over one thread as a fraction of the number of workers, if every token took the same time:
+	 * a sub-epoch lasts as long as its largest cell.
+	 */
+	private double efficiency() {
+		int numBlocks = cells.length;
+		long critical = 0;
+		for(int s = 0; s < numBlocks; s++) {
+			int largest = 0;
+			for(int p = 0; p < numBlocks; p++) {
+				largest = Math.max(largest, cells[p][(p + s) % numBlocks].length);
+			}
+			critical += largest;
+		}
+		return critical == 0 ? 1.0 : (double) corpus.size() / (numBlocks * critical);
+	}
+
+	private static int countNonzero(int[] values) {
+		int n = 0;
+		for(int value : values) {
+			if(value > 0) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Spread the ids over numBlocks blocks of about the same total frequency: ids are handed out in
+	 * decreasing order of frequency, each to the currently lightest block.
+	 * @return [id] = the block of id
+	 */
+	static int[] assignBlocks(final int[] frequency, int numBlocks) {
+		List<Integer> ids = new ArrayList<Integer>();
+		for(int id = 0; id < frequency.length; id++) {
+			if(frequency[id] > 0) {
+				ids.add(id);
+			}
+		}
+		Collections.sort(ids, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer id1, Integer id2) {
+				return frequency[id2] - frequency[id1];
+			}
+		});
+
+		int[] blockOf = new int[frequency.length];
+		long[] loads = new long[numBlocks];
+		for(int id : ids) {
+			int lightest = 0;
+			for(int b = 1; b < numBlocks; b++) {
+				if(loads[b] < loads[lightest]) {
+					lightest = b;
+				}
+			}
+			blockOf[id] = lightest;
+			loads[lightest] += frequency[id];
+		}
+		return blockOf;
+	}
+
+	// first pass counts the tokens of each cell, second pass fills them in
+	private static int[][][] partition(GibbsCorpus corpus, int[] verbBlock, int[] nounBlock, int numBlocks) {
+		int[][] sizes = new int[numBlocks][numBlocks];
+		for(int i = 0; i < corpus.size(); i++) {
+			sizes[verbBlock[corpus.getVerb(i)]][nounBlock[corpus.getNoun(i)]]++;
+		}
+		int[][][] cells = new int[numBlocks][numBlocks][];
+		for(int p = 0; p < numBlocks; p++) {
+			for(int q = 0; q < numBlocks; q++) {
+				cells[p][q] = new int[sizes[p][q]];
+				sizes[p][q] = 0;
+			}
+		}
+		for(int i = 0; i < corpus.size(); i++) {
+			int p = verbBlock[corpus.getVerb(i)];
+			int q = nounBlock[corpus.getNoun(i)];
+			cells[p][q][sizes[p][q]++] = i;
+		}
+		return cells;
+	}
+}
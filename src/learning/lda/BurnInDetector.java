@@ -0,0 +1,72 @@
+package learning.lda;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Decides when the log-likelihood of a Gibbs chain has stopped improving.
+ *
+ * The chain has plateaued once the mean log-likelihood of the last window iterations is no more than one
+ * standard deviation of those iterations above the mean of the window before. While the chain is still
+ * climbing, consecutive windows differ by far more than the sweep-to-sweep noise; once it is mixing around
+ * its mode, they differ by less.
+ */
+public class BurnInDetector {
+	private final int window;
+	// the last 2 * window log-likelihoods, oldest first once full
+	private final double[] history;
+	private int size;
+
+	public BurnInDetector(int window) {
+		this.window = window;
+		history = new double[2 * window];
+	}
+
+	public void add(double logLikelihood) {
+		if(size == history.length) {
+			System.arraycopy(history, 1, history, 0, size - 1);
+			size--;
+		}
+		history[size++] = logLikelihood;
+	}
+
+	public boolean hasPlateaued() {
+		if(size < history.length) {
+			return false;
+		}
+		double previousMean = 0.0;
+		double lastMean = 0.0;
+		for(int i = 0; i < window; i++) {
+			previousMean += history[i];
+			lastMean += history[window + i];
+		}
+		previousMean /= window;
+		lastMean /= window;
+
+		double variance = 0.0;
+		for(int i = window; i < history.length; i++) {
+			variance += (history[i] - lastMean) * (history[i] - lastMean);
+		}
+		double stdDev = Math.sqrt(variance / (window - 1));
+		return lastMean - previousMean <= stdDev;
+	}
+
+	/**
+	 * Binary form of the history, for GibbsCheckpoint.
+	 */
+	public void save(DataOutput out) throws IOException {
+		out.writeInt(size);
+		for(int i = 0; i < size; i++) {
+			out.writeDouble(history[i]);
+		}
+	}
+
+	public void load(DataInput in) throws IOException {
+		int savedSize = in.readInt();
+		size = 0;
+		for(int i = 0; i < savedSize; i++) {
+			add(in.readDouble());
+		}
+	}
+}
@@ -3,7 +3,8 @@ package learning.lda;
 import java.io.*;
 import java.util.*;
 
-import util.StatUtil;
+import util.XoroshiroRandom;
+
 
 
 public class CollapsedGibbsSampler {
@@ -11,15 +12,20 @@ public class CollapsedGibbsSampler {
 	 * @param args
 	 * @throws IOException 
 	 */
-	public static void main(String[] args) throws IOException {
+	public static void main(String[] args) throws Exception {
 		System.out.println("This is the new MCMC");
-		String baseDir = args[0];
-		if(!baseDir.endsWith("/")) {
-			baseDir += "/";
+		GibbsOptions options;
+		try {
+			options = GibbsOptions.parse(args);
+		} catch(IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(GibbsOptions.USAGE);
+			return;
 		}
+		String baseDir = options.baseDir;
 		
 		// TODO Auto-generated method stub
-		int T = 300;
+		int T = options.numTopics;
 		double gamma = 0.01;
 		double alpha = 50.0 / T;
 		
@@ -33,6 +39,11 @@ public class CollapsedGibbsSampler {
 		int lag = 50; 
 		int numSampsPerLag = 5; 
 		int totNumSamps = 0;
+		// with --auto-burnin, burnin is only an upper bound: burn-in ends as soon as the log-likelihood of the
+		// last burninWindow iterations is no better than that of the burninWindow before, see BurnInDetector
+		int burninWindow = 25;
+		// number of iterations cut by ending burn-in early, the rest of the schedule moves up by as much
+		int burninCut = 0;
 
 		
 		/*######################################
@@ -70,26 +81,67 @@ public class CollapsedGibbsSampler {
 		
 		int N = nounIdx.size();				
 		
-		int C = 6594702;
+		// the corpus is parsed once, and every sweep runs over the in-memory copy,
+		// or over a memory mapped binary copy when it doesn't fit in the heap.
+		// In aggregated mode, the sweeps run over the distinct (v,n) pairs instead of the tokens.
+		GibbsCorpus corpus = null;
+		AggregatedGibbsCorpus pairs = null;
+		long C;
+		if (options.aggregated) {
+			pairs = AggregatedGibbsCorpus.load(baseDir + options.getCorpusFile());
+			C = pairs.getTokenCount();
+		} else {
+			if (options.memoryMapped) {
+				corpus = MappedGibbsCorpus.openOrConvert(baseDir + options.getCorpusFile(), baseDir + options.getBinaryCorpusFile());
+			} else {
+				corpus = GibbsCorpus.load(baseDir + options.getCorpusFile());
+			}
+			C = corpus.size();
+		}
+		
+		// with --order=sorted, the sweeps visit the tokens grouped by verb and noun, for the locality of the count rows
+		SortedGibbsCorpus sortedCorpus = null;
+		if (options.tokenOrder == GibbsOptions.TokenOrder.SORTED) {
+			System.out.println("sorting the tokens by verb and noun");
+			sortedCorpus = new SortedGibbsCorpus(corpus, V, N);
+			corpus = sortedCorpus;
+			System.out.println(sortedCorpus.getRepeatedTokenCount() + " of " + C + " tokens follow a token of the same (v,n) pair");
+		}
 		
 		System.out.println("start training with " + C + " tuples in vnIdx...");
 		
+		// every thread gets its own generator, split from or reseeded by this one, see ApproximateDistributedGibbsSampler
+		long seed = options.seed != null ? options.seed : XoroshiroRandom.newSeed();
+		System.out.println("random seed = " + seed);
+		
+		if (options.numChains > 1) {
+			// the chains share the corpus loaded above, and nothing else
+			System.out.println("running " + options.numChains + " chains with the " + options.sampler + " sampler");
+			MultiChainGibbsSampler chains = new MultiChainGibbsSampler(corpus, V, N, T, alpha, gamma, options, options.numChains, seed);
+			chains.run(burnin, numIter, lag, numSampsPerLag, baseDir);
+			return;
+		}
+		
 		/*######################################
 		# MARKOV CHAIN INITIALIZATION
 		######################################*/
-		// For each (v,n) pair with index i, z[i] will store an int from 1 to T, telling us the current topic assignment of this pair
-		int [] z = new int [C];
+		// For each (v,n) pair with index i, z[i] will store an int from 0 to T-1, telling us the current topic assignment of this pair
+		TopicAssignments z = null;
+		if (options.memoryMapped) {
+			z = new MappedTopicAssignments(baseDir + "z.bin", corpus.size(), T);
+		} else if (corpus != null) {
+			z = new ArrayTopicAssignments(corpus.size(), T);
+		}
+		// z.txt and the checkpoints list the topic assignments in the order of the vnIdx file, whatever the sweep order
+		TopicAssignments fileOrderZ = sortedCorpus != null ? sortedCorpus.inFileOrder(z) : z;
 
-		// cumBeta and cumTheta will store the accumulated distro vectors, and be used to average
-		// (in the sense of Monte Carlo) once the Markov Chain stabilizes
-		double [][] cumBeta = new double [T][N];
-		double [][] cumTheta = new double [V][T];
+		boolean hybridCounts = options.getCountLayout() == GibbsOptions.CountLayout.HYBRID;
 
 		// #C^{WT}_{n,t} tells us the number of times a noun n has been assigned to topic t
-		int [][] CWT = new int [N][T];
+		CountMatrix CWT = hybridCounts ? new HybridCountMatrix(N, T) : new DenseCountMatrix(N, T);
 
 		// C^{VT}_{v,t} tells us the number of times a topic t has been assigned to the nouns that ever appear in a (v,n) pair
-		int [][] CVT = new int [V][T];
+		CountMatrix CVT = hybridCounts ? new HybridCountMatrix(V, T) : new DenseCountMatrix(V, T);
 
 		// tells us the number of nouns that have been assigned to each topic (i.e. the column sum of CWT)
 		int [] numNounsInTopic = new int[T];
@@ -97,30 +149,103 @@ public class CollapsedGibbsSampler {
 		// tells us the number of nouns associated with each verb (i.e. the row sum of CVT)
 		int [] numNounsWithVerb = new int [V];
 
-		// file connection for the vnIdx file
-		BufferedReader brVn = new BufferedReader(new FileReader(baseDir + "vnIdxSmall.txt"));
+		GibbsCounts counts = new GibbsCounts(CWT, CVT, numNounsInTopic, numNounsWithVerb, alpha, gamma);
+
+		// cumBeta and cumTheta will store the accumulated distro vectors, and be used to average
+		// (in the sense of Monte Carlo) once the Markov Chain stabilizes.
+		// With --averaging=counts, countAverage sums the counts instead, which takes a fraction of the memory
+		double [][] cumBeta = null;
+		double [][] cumTheta = null;
+		CountAverage countAverage = null;
+		if (options.averaging == GibbsOptions.Averaging.COUNTS) {
+			countAverage = new CountAverage(counts);
+		} else {
+			cumBeta = new double [T][N];
+			cumTheta = new double [V][T];
+		}
+
+		// the collapsed log-likelihood, updated by the samplers as they move tokens around
+		GibbsLogLikelihood logLikelihood = new GibbsLogLikelihood(counts);
+		BurnInDetector burnInDetector = new BurnInDetector(burninWindow);
 		
-		Random r = new Random();
-		for (int i = 0; i < C; i++) {
-		  int t = r.nextInt(T); // randomly choose t
-		  z[i] = t;
-		  
-		  if(i % 10000 == 0) System.out.println("assigning tuple " + i + " to topic " + t);
-		  		  
-		  String nextLine = brVn.readLine();
-		  if (nextLine == null) System.err.println("read past the end of vnIdx");
-		  
-		  String [] vnPair = nextLine.split(",");
-		  int curV = Integer.parseInt(vnPair[0]) - 1;
-		  int curN = Integer.parseInt(vnPair[1]) - 1;
-		  
-		  CWT[curN][t] = CWT[curN][t] + 1;
-		  CVT[curV][t] = CVT[curV][t] + 1;
-		  
-		  numNounsInTopic[t] = numNounsInTopic[t] + 1;
-		  numNounsWithVerb[curV] = numNounsWithVerb[curV] + 1;
+		Random r = new XoroshiroRandom(seed);
+		AggregatedGibbsSampler aggregatedSampler = null;
+		if (pairs != null) {
+			aggregatedSampler = new AggregatedGibbsSampler(pairs, counts, r, logLikelihood);
+		}
+		
+		// the whole chain state is saved every checkpointInterval iterations, so a crashed run can be resumed
+		String checkpointPath = baseDir + "checkpoint.bin";
+		GibbsCheckpoint checkpoint = new GibbsCheckpoint(fileOrderZ, aggregatedSampler, counts, cumBeta, cumTheta, countAverage, burnInDetector);
+		int startIter = 0;
+		if (options.resume && checkpoint.restore(checkpointPath)) {
+			startIter = checkpoint.iteration;
+			totNumSamps = checkpoint.totNumSamps;
+			r.setSeed(checkpoint.seed);
+			burninCut = burnin - checkpoint.burnin;
+			burnin = checkpoint.burnin;
+			numIter -= burninCut;
+			System.out.println("resuming from " + checkpointPath + " at iteration " + startIter);
+		} else {
+			if (options.resume) {
+				System.out.println("no checkpoint at " + checkpointPath + ", starting a new chain");
+			}
+			if (aggregatedSampler != null) {
+				aggregatedSampler.initialize();
+			}
+			for (int i = 0; z != null && i < z.size(); i++) {
+			  int t = r.nextInt(T); // randomly choose t
+			  z.set(i, t);
+			  
+			  if(i % 10000 == 0) System.out.println("assigning tuple " + i + " to topic " + t);
+			  
+			  int curV = corpus.getVerb(i);
+			  int curN = corpus.getNoun(i);
+			  
+			  CWT.add(curN, t, 1);
+			  CVT.add(curV, t, 1);
+			  
+			  numNounsInTopic[t] = numNounsInTopic[t] + 1;
+			  numNounsWithVerb[curV] = numNounsWithVerb[curV] + 1;
+			}
+		}
+		logLikelihood.recompute();
+		System.out.println("initial log-likelihood = " + logLikelihood.get());
+		
+		if (countAverage != null) {
+			// the samples still to take, see the sampling condition below; ending burn-in early shifts burnin,
+			// numIter and burninCut alike, so it doesn't change their number
+			int numMoreSamps = 0;
+			for (int iter = Math.max(startIter, burnin + 1); iter < numIter; iter++) {
+				if (((iter + burninCut) % lag) < numSampsPerLag) {
+					numMoreSamps++;
+				}
+			}
+			if (!countAverage.fits(numMoreSamps)) {
+				System.err.println("The summed counts of " + (countAverage.getSampleCount() + numMoreSamps)
+						+ " samples would overflow on the most frequent noun or verb, use --averaging=estimates");
+				return;
+			}
+		}
+		
+		if (aggregatedSampler != null) {
+			System.out.println("sampling " + pairs.size() + " aggregated pairs with " + T + " topics");
+		} else {
+			System.out.println("sampling with the " + options.sampler + " sampler, " + options.getCountLayout()
+					+ " counts and " + T + " topics");
+		}
+		
+		TopicSampler sampler = null;
+		ParallelGibbsSampler parallelSampler = null;
+		if (aggregatedSampler != null) {
+			// sweeps are done by aggregatedSampler
+		} else if (options.numThreads > 1 && options.parallelScheme == GibbsOptions.ParallelScheme.BLOCKS) {
+			parallelSampler = new BlockParallelGibbsSampler(corpus, z, counts, options.sampler, options.numThreads, r, logLikelihood);
+		} else if (options.numThreads > 1) {
+			parallelSampler = new ApproximateDistributedGibbsSampler(corpus, z, counts, options.sampler, options.numThreads, r, logLikelihood);
+		} else {
+			sampler = createTopicSampler(options.sampler, counts, r);
 		}
-		brVn.close();
 		
 //      print out initial CVT
 //	    for (int v = 0; v < V; v++) {
@@ -138,89 +263,104 @@ public class CollapsedGibbsSampler {
 		/*######################################
 		# COLLAPSED GIBBS SAMPLING
 		######################################*/
-		for (int iter = 0; iter < numIter; iter++) {
+		BackgroundSnapshotWriter snapshotWriter = new BackgroundSnapshotWriter(baseDir, options.snapshotFormat, counts, cumBeta, cumTheta, countAverage);
+		
+		for (int iter = startIter; iter < numIter; iter++) {
 		  long startTime = System.nanoTime();
 		  System.out.println("At iteration " + iter);
 		  
-		  // file connection for the vnIdx file
-		  brVn = new BufferedReader(new FileReader(baseDir + "vnIdxSmall.txt"));
-		  
-		  for (int i = 0; i < C; i++) {
-
-		    int tau = z[i]; // the current topic assignment for this pair
-		    
-		    String nextLine = brVn.readLine();
-			if (nextLine == null) System.err.println("read past the end of vnIdx");
-			  
-			String [] vnPair = nextLine.split(",");
-			int curV = Integer.parseInt(vnPair[0]) - 1;
-			int curN = Integer.parseInt(vnPair[1]) - 1;
-			
-		    if (CWT[curN][tau] == 0) System.err.println("warning: subtracting zero entry CWT[" + curN + "," + tau + "]");
-		    CWT[curN][tau] = CWT[curN][tau] - 1;
-		  
-		    if (CVT[curV][tau] == 0) System.err.println("warning: subtracting zero entry CVT[" + curV + "," + tau + "]");
-		    CVT[curV][tau] = CVT[curV][tau] - 1;
-		    
-		    numNounsInTopic[tau] = numNounsInTopic[tau] - 1;
-		    numNounsWithVerb[curV] = numNounsWithVerb[curV] - 1;
-		    
-		    double [] resampleDistro = new double[T];
-		    
-		    for (int t = 0; t < T; t++) {
-		      double pnt = (double) (CWT[curN][t] + gamma) / (numNounsInTopic[t] + N * gamma);
-		      double ptv = (double) (CVT[curV][t] + alpha) / (numNounsWithVerb[curV] + T * alpha);
-		      resampleDistro[t] = pnt * ptv;
+		  if (aggregatedSampler != null) {
+		    aggregatedSampler.sweep();
+		  } else if (parallelSampler != null) {
+		    parallelSampler.sweep();
+		  } else {
+		    sampler.startSweep();
+		    for (int i = 0; i < z.size(); i++) {
+		      int curV = corpus.getVerb(i);
+		      int curN = corpus.getNoun(i);
+		      int tau = z.get(i);
+		      int newTopic = sampler.resample(curV, curN, tau);
+		      if (newTopic != tau) {
+		        z.set(i, newTopic);
+		        logLikelihood.moveToken(curV, curN, tau, newTopic);
+		      }
 		    }
-		    
-		    tau = StatUtil.sampleMultinomial(resampleDistro);
-
-		    CWT[curN][tau] = CWT[curN][tau] + 1;
-		    CVT[curV][tau] = CVT[curV][tau] + 1;
-		    
-		    numNounsInTopic[tau] = numNounsInTopic[tau] + 1;
-		    numNounsWithVerb[curV] = numNounsWithVerb[curV] + 1;
-		    
-		    z[i] = tau;		    
+		  }
+		  System.out.println("log-likelihood = " + logLikelihood.get() + ", perplexity = " + logLikelihood.getPerplexity());
+		  
+		  burnInDetector.add(logLikelihood.get());
+		  if (options.autoBurnin && iter < burnin && burnInDetector.hasPlateaued()) {
+		    System.out.println("log-likelihood has plateaued, ending burn-in at iteration " + iter);
+		    burninCut += burnin - iter;
+		    numIter -= burnin - iter;
+		    burnin = iter;
 		  }
 		  
 		  // stores the model state after burnin is done (for future training)
-		  if (iter == burnin) {
+		  if (iter == burnin && aggregatedSampler != null) {
+		    aggregatedSampler.writeHistograms(baseDir + "zHist.txt");
+		  } else if (iter == burnin) {
 		    PrintWriter printWriter = new PrintWriter(baseDir + "z.txt");
-		    for (int i = 0; i < C; i++) {
-		        printWriter.println(z[i]);
+		    for (int i = 0; i < fileOrderZ.size(); i++) {
+		        printWriter.println(fileOrderZ.get(i));
 		    }
 		    printWriter.close();
 		  }
 		  
-		  if (iter > burnin && (iter % lag) < numSampsPerLag) {
-		    // only sample when iter = k*lag, k*lag+1, ..., k * lag + (numSampsPerLag - 1)
+		  if (iter > burnin && ((iter + burninCut) % lag) < numSampsPerLag) {
+		    // only sample when iter = k*lag, k*lag+1, ..., k * lag + (numSampsPerLag - 1), shifted by burninCut
 			  
-			// accumulate the current sample, and take a snapshot of the current sample
-			PrintWriter printWriter = new PrintWriter(baseDir + "betaAtIter" + iter + ".txt");
+			// accumulate the current sample, and take a snapshot of the current sample.
+			// Only the counts are copied here, the writer thread does the rest while the next sweep runs
+			snapshotWriter.submit(iter);
+		    
+		    totNumSamps = totNumSamps + 1;
+		  }  
+		  
+		  if ((iter + 1) % options.checkpointInterval == 0 && iter + 1 < numIter) {
+		    // cumBeta and cumTheta (or countAverage) are only up to date once the pending snapshots are written
+		    snapshotWriter.drain();
+		    // reseed from the saved seed, so that a chain resumed from here draws the same random numbers as this one
+		    checkpoint.iteration = iter + 1;
+		    checkpoint.totNumSamps = totNumSamps;
+		    checkpoint.burnin = burnin;
+		    checkpoint.seed = r.nextLong();
+		    r.setSeed(checkpoint.seed);
+		    if (sampler != null) {
+		      // rebuild the sampler's caches the same way a resumed chain builds them
+		      sampler.resync();
+		    }
+		    checkpoint.save(checkpointPath);
+		  }
+		  System.out.println("iteration " + iter + " took time: " + (System.nanoTime() - startTime) / Math.pow(10, 9));
+		}
+		
+		snapshotWriter.close();
+		
+		if (countAverage != null) {
+			countAverage.writeBeta(baseDir + "betaAvg.txt");
+			countAverage.writeTheta(baseDir + "thetaAvg.txt");
+		} else {
+			// the averages are written as they are computed, without a copy of cumBeta / cumTheta
+			PrintWriter printWriter = new PrintWriter(baseDir + "betaAvg.txt");
+		
 		    for (int t = 0; t < T; t++) {
 		      for (int n = 0; n < N; n++) {
-		    	double curEnt = (CWT[n][t] + gamma) / (numNounsInTopic[t] + N * gamma);
-		        cumBeta[t][n] = cumBeta[t][n] + curEnt;
-		        
-		        printWriter.print(curEnt);
+		        printWriter.print(cumBeta[t][n] / totNumSamps);
 		        if (n < N-1) {
 		        	printWriter.print("\t");
 		        } else {
 		        	printWriter.println();
 		        }
 		      }
-		    }    
+		    }
+	    
 		    printWriter.close();
-		    
-		    printWriter = new PrintWriter(baseDir + "thetaAtIter" + iter + ".txt");
-		    
+	    
+		    printWriter = new PrintWriter(baseDir + "thetaAvg.txt");
 		    for (int v = 0; v < V; v++) {
 		      for (int t = 0; t < T; t++) {
-		    	double curEnt = (CVT[v][t] + alpha) / (numNounsWithVerb[v] + T * alpha);
-		        cumTheta[v][t] = cumTheta[v][t] + curEnt;
-		        
-		        printWriter.print(curEnt);
+		        printWriter.print(cumTheta[v][t] / totNumSamps);
 		        if (t < T-1) {
 		        	printWriter.print("\t");
 		        } else {
@@ -228,51 +368,27 @@ public class CollapsedGibbsSampler {
 		        }
 		      }
 		    }
+	    
 		    printWriter.close();
-		    
-		    totNumSamps = totNumSamps + 1;
-		  }  
-		  brVn.close();
-		  System.out.println("iteration " + iter + " took time: " + (System.nanoTime() - startTime) / Math.pow(10, 9));
 		}
-		
-		double [][] beta = new double [T][N];
-		double [][] theta = new double [V][T];
- 
-		PrintWriter printWriter = new PrintWriter(baseDir + "betaAvg.txt");
-		
-	    for (int t = 0; t < T; t++) {
-	      for (int n = 0; n < N; n++) {
-	        beta[t][n] = cumBeta[t][n] / totNumSamps;
-	        
-	        printWriter.print(beta[t][n]);
-	        if (n < N-1) {
-	        	printWriter.print("\t");
-	        } else {
-	        	printWriter.println();
-	        }
-	      }
-	    }
 	    
-	    printWriter.close();
-	    
-	    printWriter = new PrintWriter(baseDir + "thetaAvg.txt");
-	    for (int v = 0; v < V; v++) {
-	      for (int t = 0; t < T; t++) {
-	        theta[v][t] = cumTheta[v][t] / totNumSamps;
-	        
-	        printWriter.print(theta[v][t]);
-	        if (t < T-1) {
-	        	printWriter.print("\t");
-	        } else {
-	        	printWriter.println();
-	        }
-	      }
+	    if (parallelSampler != null) {
+	    	parallelSampler.shutdown();
 	    }
-	    
-	    printWriter.close();
-	    
-	    
+	    if (z instanceof MappedTopicAssignments) {
+	    	((MappedTopicAssignments) z).flush();
+	    }
+	}
+	
+	static TopicSampler createTopicSampler(GibbsOptions.SamplerKind kind, GibbsCounts counts, Random r) {
+		switch(kind) {
+		case SPARSE:
+			return new SparseTopicSampler(counts, r);
+		case MH:
+			return new MetropolisHastingsTopicSampler(counts, r);
+		default:
+			return new DenseTopicSampler(counts, r);
+		}
 	}
 
 }
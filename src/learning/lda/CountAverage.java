@@ -0,0 +1,175 @@
+package learning.lda;
+
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+
+/**
+ * Running sums of CWT, CVT and numNounsInTopic over the samples of a chain, for
+ * CollapsedGibbsSampler --averaging=counts.
+ *
+ * The default averaging adds the smoothed beta / theta estimates of every sample to T x N and V x T double
+ * matrices. This keeps the summed counts instead, in count matrices of the same kind as those of the chain,
+ * so rows that are sparse in every sample stay sparse, and derives the averages only when they are written,
+ * one row at a time. With S samples:
+ *   beta[t][n] = (sumCWT[n][t] + S * gamma) / (sumNumNounsInTopic[t] + S * N * gamma)
+ *   theta[v][t] = (sumCVT[v][t] + S * alpha) / (S * numNounsWithVerb[v] + S * T * alpha)
+ * numNounsWithVerb doesn't change while sampling, so theta is the default average up to rounding. The
+ * denominator of beta does change, so beta is the ratio of the averaged counts rather than the average of the
+ * per-sample ratios. The two differ by about the relative variance of numNounsInTopic[t] across the samples,
+ * roughly 1 / numNounsInTopic[t]: negligible for topics of thousands of tokens, noticeable on toy corpora.
+ *
+ * A sum is at most S times the frequency of its noun or verb, so the sums are ints. CollapsedGibbsSampler
+ * checks with fits() that the samples it will take can't overflow them before it starts sampling, and add()
+ * fails rather than overflow in any case.
+ */
+public class CountAverage {
+	private final GibbsCounts counts;
+	final CountMatrix sumCWT;
+	final CountMatrix sumCVT;
+	final long[] sumNumNounsInTopic;
+	int numSamples = 0;
+
+	// scratch space of add()
+	private final int[] rowScratch;
+	private final int[] nonzeroCols;
+	private final int[] nonzeroCounts;
+
+	/**
+	 * @param counts - the counts of the chain, only used for their kind, dimensions and priors
+	 */
+	public CountAverage(GibbsCounts counts) {
+		this.counts = counts;
+		int T = counts.getTopicCount();
+		sumCWT = counts.CWT instanceof HybridCountMatrix ? new HybridCountMatrix(counts.getNounCount(), T)
+				: new DenseCountMatrix(counts.getNounCount(), T);
+		sumCVT = counts.CVT instanceof HybridCountMatrix ? new HybridCountMatrix(counts.getVerbCount(), T)
+				: new DenseCountMatrix(counts.getVerbCount(), T);
+		sumNumNounsInTopic = new long[T];
+		rowScratch = new int[T];
+		nonzeroCols = new int[T];
+		nonzeroCounts = new int[T];
+	}
+
+	public int getSampleCount() {
+		return numSamples;
+	}
+
+	/**
+	 * Whether the sums can take numMoreSamples more samples without overflowing, given the frequencies of the
+	 * nouns and verbs in the current counts of the chain.
+	 */
+	public boolean fits(int numMoreSamples) {
+		int maxFrequency = 0;
+		for(int frequency : counts.numNounsWithVerb) {
+			maxFrequency = Math.max(maxFrequency, frequency);
+		}
+		for(int n = 0; n < counts.CWT.getRowCount(); n++) {
+			int numNonzero = counts.CWT.getNonzero(n, nonzeroCols, nonzeroCounts);
+			int frequency = 0;
+			for(int i = 0; i < numNonzero; i++) {
+				frequency += nonzeroCounts[i];
+			}
+			maxFrequency = Math.max(maxFrequency, frequency);
+		}
+		return ((long) numSamples + numMoreSamples) * maxFrequency <= Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Add a sample, given by its CWT, CVT and numNounsInTopic.
+	 * @throws IllegalStateException if a sum no longer fits in an int
+	 */
+	public void add(CountMatrix CWT, CountMatrix CVT, int[] numNounsInTopic) {
+		addMatrix(sumCWT, CWT);
+		addMatrix(sumCVT, CVT);
+		for(int t = 0; t < numNounsInTopic.length; t++) {
+			sumNumNounsInTopic[t] += numNounsInTopic[t];
+		}
+		numSamples++;
+	}
+
+	private void addMatrix(CountMatrix sum, CountMatrix sample) {
+		int T = rowScratch.length;
+		for(int row = 0; row < sum.getRowCount(); row++) {
+			int numNonzero = sample.getNonzero(row, nonzeroCols, nonzeroCounts);
+			if(numNonzero == 0) {
+				continue;
+			}
+			int[] values = sum.readRow(row, rowScratch);
+			if(values != rowScratch) {
+				System.arraycopy(values, sum.rowOffset(row), rowScratch, 0, T);
+			}
+			for(int i = 0; i < numNonzero; i++) {
+				long total = (long) rowScratch[nonzeroCols[i]] + nonzeroCounts[i];
+				if(total > Integer.MAX_VALUE) {
+					throw new IllegalStateException("The summed counts overflow after " + numSamples
+							+ " samples, use --averaging=estimates");
+				}
+				rowScratch[nonzeroCols[i]] = (int) total;
+			}
+			sum.setRow(row, rowScratch);
+		}
+	}
+
+	/**
+	 * Write the averaged beta, T rows of N tab separated doubles, in the format of betaAvg.txt.
+	 */
+	public void writeBeta(String path) throws FileNotFoundException {
+		checkSamples();
+		int T = counts.getTopicCount();
+		int N = counts.getNounCount();
+		double smoothing = numSamples * counts.gamma;
+		int[] topicBlock = new int[Math.min(BackgroundSnapshotWriter.TOPIC_BLOCK, T) * N];
+		PrintWriter printWriter = new PrintWriter(path);
+		try {
+			for(int t0 = 0; t0 < T; t0 += BackgroundSnapshotWriter.TOPIC_BLOCK) {
+				int t1 = Math.min(T, t0 + BackgroundSnapshotWriter.TOPIC_BLOCK);
+				sumCWT.copyColumns(t0, t1, topicBlock);
+				for(int t = t0; t < t1; t++) {
+					int blockBase = (t - t0) * N;
+					double denom = sumNumNounsInTopic[t] + N * smoothing;
+					for(int n = 0; n < N; n++) {
+						if(n > 0) {
+							printWriter.print("\t");
+						}
+						printWriter.print((topicBlock[blockBase + n] + smoothing) / denom);
+					}
+					printWriter.println();
+				}
+			}
+		} finally {
+			printWriter.close();
+		}
+	}
+
+	/**
+	 * Write the averaged theta, V rows of T tab separated doubles, in the format of thetaAvg.txt.
+	 */
+	public void writeTheta(String path) throws FileNotFoundException {
+		checkSamples();
+		int T = counts.getTopicCount();
+		double smoothing = numSamples * counts.alpha;
+		PrintWriter printWriter = new PrintWriter(path);
+		try {
+			for(int v = 0; v < sumCVT.getRowCount(); v++) {
+				int[] row = sumCVT.readRow(v, rowScratch);
+				int base = sumCVT.rowOffset(v);
+				double denom = (double) numSamples * counts.numNounsWithVerb[v] + T * smoothing;
+				for(int t = 0; t < T; t++) {
+					if(t > 0) {
+						printWriter.print("\t");
+					}
+					printWriter.print((row[base + t] + smoothing) / denom);
+				}
+				printWriter.println();
+			}
+		} finally {
+			printWriter.close();
+		}
+	}
+
+	private void checkSamples() {
+		if(numSamples == 0) {
+			throw new IllegalStateException("No samples were taken after burn-in");
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package learning.lda;
+
+/**
+ * A rows x cols matrix of counts, e.g. CWT (noun x topic) or CVT (verb x topic).
+ *
+ * DenseCountMatrix keeps every row as a stretch of one flat int[], HybridCountMatrix keeps the rows with few
+ * nonzero counts as sorted (topic, count) lists. Hot loops read a whole row through readRow, which hands out
+ * the backing array when the row is stored densely and only copies otherwise, and enumerate the nonzero counts
+ * of a row through getNonzero, which is O(nonzero) for sparse rows.
+ * Reading along a column, e.g. a topic across all nouns, should go through copyColumns.
+ */
+public abstract class CountMatrix {
+	protected final int rows;
+	protected final int cols;
+
+	protected CountMatrix(int rows, int cols) {
+		this.rows = rows;
+		this.cols = cols;
+	}
+
+	public int getRowCount() {
+		return rows;
+	}
+
+	public int getColumnCount() {
+		return cols;
+	}
+
+	/**
+	 * A new matrix of the same kind and with the same counts.
+	 */
+	public abstract CountMatrix copy();
+
+	/**
+	 * Overwrite this matrix with the counts of other, which must be of the same kind and dimensions.
+	 */
+	public abstract void copyFrom(CountMatrix other);
+
+	public abstract int get(int row, int col);
+
+	public abstract void add(int row, int col, int delta);
+
+	/**
+	 * Fill cols[i], counts[i] with the nonzero counts of row, for i < the returned number of them.
+	 * Rows stored sparsely list their largest counts first.
+	 */
+	public abstract int getNonzero(int row, int[] cols, int[] counts);
+
+	/**
+	 * The row as an array, with (row, col) at rowOffset(row) + col: the backing array when the row is stored
+	 * densely, otherwise scratch (of length >= cols), filled with the row. Changes to the returned array
+	 * don't necessarily reach the matrix, writes have to go through add or setRow.
+	 */
+	public abstract int[] readRow(int row, int[] scratch);
+
+	public abstract int rowOffset(int row);
+
+	/**
+	 * Whether row is currently stored as a full array of cols counts.
+	 */
+	public abstract boolean isDenseRow(int row);
+
+	/**
+	 * Replace row by values[0..cols), choosing its layout the way add would.
+	 */
+	public abstract void setRow(int row, int[] values);
+
+	/**
+	 * Replace row by values[0..cols) and store it densely or not, as far as the counts allow, e.g. to
+	 * reproduce the layout of another matrix. The layout decides the order in which getNonzero lists a row.
+	 */
+	public abstract void setRow(int row, int[] values, boolean dense);
+
+	/**
+	 * Column-major copy of the columns [fromCol, toCol): out[(col - fromCol) * rows + row] = get(row, col).
+	 * Each row is visited once, so for blocks of a cache line or more, the whole matrix is read exactly once
+	 * over all the blocks.
+	 */
+	public abstract void copyColumns(int fromCol, int toCol, int[] out);
+
+	protected void checkSameShape(CountMatrix other) {
+		if(other.rows != rows || other.cols != cols || other.getClass() != getClass()) {
+			throw new IllegalArgumentException("Count matrices don't match");
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package learning.lda;
+
+/**
+ * A count matrix stored row-major in one int[].
+ *
+ * Compared to an int[rows][cols], this is a single heap object instead of one per row, and the rows are
+ * adjacent in memory, so a sweep over the rows streams through the array. Every row is handed out by readRow
+ * without copying, at offset(row).
+ */
+public class DenseCountMatrix extends CountMatrix {
+	private final int[] data;
+
+	public DenseCountMatrix(int rows, int cols) {
+		super(rows, cols);
+		if((long) rows * cols > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("A " + rows + " x " + cols + " count matrix doesn't fit in one array");
+		}
+		data = new int[rows * cols];
+	}
+
+	public DenseCountMatrix(DenseCountMatrix other) {
+		this(other.rows, other.cols);
+		copyFrom(other);
+	}
+
+	@Override
+	public CountMatrix copy() {
+		return new DenseCountMatrix(this);
+	}
+
+	/**
+	 * The backing array, row-major: (row, col) lives at offset(row) + col.
+	 */
+	public int[] array() {
+		return data;
+	}
+
+	public int offset(int row) {
+		return row * cols;
+	}
+
+	@Override
+	public int get(int row, int col) {
+		return data[row * cols + col];
+	}
+
+	@Override
+	public void add(int row, int col, int delta) {
+		data[row * cols + col] += delta;
+	}
+
+	@Override
+	public int getNonzero(int row, int[] nonzeroCols, int[] counts) {
+		int size = 0;
+		for(int col = 0, i = row * cols; col < cols; col++, i++) {
+			if(data[i] != 0) {
+				nonzeroCols[size] = col;
+				counts[size++] = data[i];
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public int[] readRow(int row, int[] scratch) {
+		return data;
+	}
+
+	@Override
+	public int rowOffset(int row) {
+		return row * cols;
+	}
+
+	@Override
+	public boolean isDenseRow(int row) {
+		return true;
+	}
+
+	@Override
+	public void setRow(int row, int[] values) {
+		System.arraycopy(values, 0, data, row * cols, cols);
+	}
+
+	@Override
+	public void setRow(int row, int[] values, boolean dense) {
+		setRow(row, values);
+	}
+
+	@Override
+	public void copyFrom(CountMatrix other) {
+		checkSameShape(other);
+		System.arraycopy(((DenseCountMatrix) other).data, 0, data, 0, data.length);
+	}
+
+	@Override
+	public void copyColumns(int fromCol, int toCol, int[] out) {
+		int width = toCol - fromCol;
+		for(int row = 0, base = fromCol; row < rows; row++, base += cols) {
+			for(int c = 0; c < width; c++) {
+				out[c * rows + row] = data[base + c];
+			}
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package learning.lda;
+
+/**
+ * The conditional of every topic for one (v,n) token, and draws from it:
+ *   p(t) ~ (CVT[v][t] + alpha) * (CWT[n][t] + gamma) / (numNounsInTopic[t] + N * gamma)
+ * The verb's denominator numNounsWithVerb[v] + T * alpha is the same for every topic and is left out.
+ *
+ * The reciprocals of the noun denominators are cached, so filling in the conditional takes no divisions.
+ * Whoever changes numNounsInTopic[t] has to call updateTopic(t) afterwards, or resync() after bulk changes.
+ * The conditional is stored as its running sum, so a draw is one binary search over it and any number of
+ * draws can be taken from one fill. An instance holds scratch space, so every thread needs its own.
+ *
+ * Consecutive tokens of the same (v,n) pair have conditionals that only differ in the topics the previous
+ * tokens moved between. For those, startRun() turns the last fill into a Fenwick tree of the per-topic
+ * weights, after which refresh updates the weight of a topic and drawRun() draws, both in O(log T).
+ */
+public class DenseTopicKernel {
+	private final GibbsCounts counts;
+	private final int T;
+	private final double alpha;
+	private final double gamma;
+	private final double nGamma;
+
+	// invNounDenom[t] = 1 / (numNounsInTopic[t] + N * gamma)
+	private final double[] invNounDenom;
+	// cumulative[t] = p(0) + ... + p(t), of the last fill
+	private final double[] cumulative;
+
+	// between startRun() and the next fill: the weight of every topic, and the Fenwick tree over them,
+	// 1-based, with runTree[i] = the sum of the weights of topics (i - lowestOneBit(i), i]
+	private final double[] runWeight;
+	private final double[] runTree;
+	private final int runStep;
+	private double runTotal;
+
+	public DenseTopicKernel(GibbsCounts counts) {
+		this.counts = counts;
+		T = counts.getTopicCount();
+		alpha = counts.alpha;
+		gamma = counts.gamma;
+		nGamma = counts.getNounCount() * gamma;
+		invNounDenom = new double[T];
+		cumulative = new double[T];
+		runWeight = new double[T];
+		runTree = new double[T + 1];
+		runStep = Integer.highestOneBit(T);
+		resync();
+	}
+
+	public void resync() {
+		for(int t = 0; t < T; t++) {
+			updateTopic(t);
+		}
+	}
+
+	public void updateTopic(int t) {
+		invNounDenom[t] = 1.0 / (counts.numNounsInTopic[t] + nGamma);
+	}
+
+	/**
+	 * Compute the conditional from the noun's row of CWT at nounRow[nBase..] and the verb's row of CVT
+	 * at verbRow[vBase..], see CountMatrix.readRow.
+	 * @return the total unnormalized mass
+	 */
+	public double fill(int[] nounRow, int nBase, int[] verbRow, int vBase) {
+		double sum = 0.0;
+		for(int t = 0; t < T; t++) {
+			sum += (verbRow[vBase + t] + alpha) * (nounRow[nBase + t] + gamma) * invNounDenom[t];
+			cumulative[t] = sum;
+		}
+		return sum;
+	}
+
+	/**
+	 * @param u - uniform in [0, 1)
+	 * @return a topic drawn from the conditional of the last fill
+	 */
+	public int draw(double u) {
+		double target = u * cumulative[T - 1];
+		// smallest t with cumulative[t] >= target
+		int lo = 0;
+		int hi = T - 1;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(cumulative[mid] < target) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Make the conditional of the last fill updatable by refresh, for more tokens of the same (v,n) pair.
+	 * Every topic whose counts changed since the fill has to be refreshed before the next drawRun.
+	 */
+	public void startRun() {
+		double previous = 0.0;
+		for(int t = 0; t < T; t++) {
+			runWeight[t] = cumulative[t] - previous;
+			previous = cumulative[t];
+			int i = t + 1;
+			int from = i - (i & -i);
+			runTree[i] = cumulative[t] - (from > 0 ? cumulative[from - 1] : 0.0);
+		}
+		runTotal = cumulative[T - 1];
+	}
+
+	/**
+	 * Recompute the weight of topic t during a run, after its counts changed and updateTopic(t).
+	 * @param verbCount, nounCount - the current CVT and CWT counts of the run's verb and noun in topic t
+	 */
+	public void refresh(int t, int verbCount, int nounCount) {
+		double weight = (verbCount + alpha) * (nounCount + gamma) * invNounDenom[t];
+		double delta = weight - runWeight[t];
+		runWeight[t] = weight;
+		runTotal += delta;
+		for(int i = t + 1; i <= T; i += i & -i) {
+			runTree[i] += delta;
+		}
+	}
+
+	/**
+	 * @param u - uniform in [0, 1)
+	 * @return a topic drawn from the conditional of the current run
+	 */
+	public int drawRun(double u) {
+		double remaining = u * runTotal;
+		// the largest prefix of topics whose weights sum to less than the target, the topic drawn is the next one
+		int i = 0;
+		for(int step = runStep; step > 0; step >>= 1) {
+			if(i + step <= T && runTree[i + step] < remaining) {
+				i += step;
+				remaining -= runTree[i];
+			}
+		}
+		return Math.min(i, T - 1);
+	}
+}
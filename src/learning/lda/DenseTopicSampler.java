@@ -0,0 +1,95 @@
+package learning.lda;
+
+import java.util.Random;
+
+/**
+ * The plain collapsed Gibbs update, which evaluates the conditional of every topic for every token.
+ * The conditional is computed and drawn from by a DenseTopicKernel, so resampling a token allocates nothing.
+ *
+ * When a token has the same verb and noun as the one before it, as in a SortedGibbsCorpus, the conditional
+ * is not recomputed but updated in the two or three topics the counts changed in since, see
+ * DenseTopicKernel.startRun.
+ */
+public class DenseTopicSampler implements TopicSampler {
+	private final GibbsCounts counts;
+	private final Random r;
+	private final DenseTopicKernel kernel;
+
+	// where readRow copies rows that aren't stored densely
+	private final int[] nounScratch;
+	private final int[] verbScratch;
+
+	// the (v,n) pair of the previous token, -1 when the next token has to fill the conditional, and its new topic
+	private int runV = -1;
+	private int runN = -1;
+	private int runTopic;
+	// whether the kernel's Fenwick tree is built for the current pair
+	private boolean inRun;
+
+	public DenseTopicSampler(GibbsCounts counts, Random r) {
+		this.counts = counts;
+		this.r = r;
+		kernel = new DenseTopicKernel(counts);
+		nounScratch = new int[counts.getTopicCount()];
+		verbScratch = new int[counts.getTopicCount()];
+	}
+
+	@Override
+	public int resample(int curV, int curN, int tau) {
+		CountMatrix CWT = counts.CWT;
+		CountMatrix CVT = counts.CVT;
+		int[] numNounsInTopic = counts.numNounsInTopic;
+		int[] numNounsWithVerb = counts.numNounsWithVerb;
+		if (CWT.get(curN, tau) == 0) System.err.println("warning: subtracting zero entry CWT[" + curN + "," + tau + "]");
+		CWT.add(curN, tau, -1);
+		
+		if (CVT.get(curV, tau) == 0) System.err.println("warning: subtracting zero entry CVT[" + curV + "," + tau + "]");
+		CVT.add(curV, tau, -1);
+		
+		numNounsInTopic[tau] = numNounsInTopic[tau] - 1;
+		numNounsWithVerb[curV] = numNounsWithVerb[curV] - 1;
+		kernel.updateTopic(tau);
+		
+		if (curV == runV && curN == runN) {
+			// only the previous token's new topic and this token's old topic changed since the last fill or refresh
+			if (!inRun) {
+				kernel.startRun();
+				inRun = true;
+			}
+			kernel.refresh(runTopic, CVT.get(curV, runTopic), CWT.get(curN, runTopic));
+			kernel.refresh(tau, CVT.get(curV, tau), CWT.get(curN, tau));
+			tau = kernel.drawRun(r.nextDouble());
+		} else {
+			int[] nounRow = CWT.readRow(curN, nounScratch);
+			int[] verbRow = CVT.readRow(curV, verbScratch);
+			int nBase = CWT.rowOffset(curN);
+			int vBase = CVT.rowOffset(curV);
+			kernel.fill(nounRow, nBase, verbRow, vBase);
+			tau = kernel.draw(r.nextDouble());
+			runV = curV;
+			runN = curN;
+			inRun = false;
+		}
+		
+		CWT.add(curN, tau, 1);
+		CVT.add(curV, tau, 1);
+		
+		numNounsInTopic[tau] = numNounsInTopic[tau] + 1;
+		numNounsWithVerb[curV] = numNounsWithVerb[curV] + 1;
+		kernel.updateTopic(tau);
+		runTopic = tau;
+		
+		return tau;
+	}
+
+	@Override
+	public void startSweep() {
+		runV = -1;
+	}
+
+	@Override
+	public void resync() {
+		kernel.resync();
+		runV = -1;
+	}
+}
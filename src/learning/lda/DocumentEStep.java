@@ -0,0 +1,140 @@
+package learning.lda;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+/**
+ * The E-step of stochastic variational inference for one document: iterate phi and gamma_d until gamma_d
+ * converges, leaving freq * phi of every noun of the document for the M-step.
+ *
+ * E[log beta] is read from an ExpectedLogBeta loaded with all the nouns of the document, possibly among
+ * those of other documents, and not written, so the documents of a minibatch can run on different threads
+ * against the same ExpectedLogBeta. Every thread needs its own DocumentEStep though, which holds the
+ * scratch space and the results, and reuses them for the next document.
+ */
+public class DocumentEStep {
+	private final int K;
+	private final double alpha;
+	private final double gammaConvergence;
+	private final int maxIterations;
+
+	private final double[] expELogTheta;
+	private final double[] tempGammaD;
+	private final double[] pows;
+
+	// the document: rows[i] = the ExpectedLogBeta row of its i-th noun, freqs[i] = the frequency of that noun
+	private int numNouns = 0;
+	private int[] rows = new int[0];
+	private int[] freqs = new int[0];
+	// statistics[i][k] = freqs[i] * phi[k] of the i-th noun, from the last iteration
+	private double[][] statistics = new double[0][];
+
+	private int numIterations;
+	private double distance;
+
+	public DocumentEStep(int K, double alpha, double gammaConvergence, int maxIterations) {
+		this.K = K;
+		this.alpha = alpha;
+		this.gammaConvergence = gammaConvergence;
+		this.maxIterations = maxIterations;
+		expELogTheta = new double[K];
+		tempGammaD = new double[K];
+		pows = new double[K];
+	}
+
+	/**
+	 * Set the document, a list of (noun, frequency) pairs with distinct nouns, whose i-th noun is in row
+	 * rows[i] of the ExpectedLogBeta passed to run().
+	 */
+	public void setDocument(List<Pair<Integer, Integer>> document, int[] rows) {
+		numNouns = document.size();
+		if(statistics.length < numNouns) {
+			int oldLength = statistics.length;
+			statistics = Arrays.copyOf(statistics, Math.max(numNouns, 2 * oldLength));
+			for(int i = oldLength; i < statistics.length; i++) {
+				statistics[i] = new double[K];
+			}
+			this.rows = new int[statistics.length];
+			freqs = new int[statistics.length];
+		}
+		for(int i = 0; i < numNouns; i++) {
+			this.rows[i] = rows[i];
+			freqs[i] = document.get(i).getValue();
+		}
+	}
+
+	/**
+	 * Compute phi and gamma until convergence, starting from and updating gammaD in place.
+	 */
+	public void run(ExpectedLogBeta expectedLogBeta, double[] gammaD) {
+		numIterations = 0;
+		while(true) {
+			// precompute exp(E[log theta]) = exp(digamma(gamma_d_k) - digamma(sum_j=1->K {gamma_d_j}))
+			double sumGamma = 0.0;
+			for(int k = 0; k < K; k++) {
+				sumGamma += gammaD[k];
+			}
+			double digammaSum = VariationalKernels.digamma(sumGamma);
+			VariationalKernels.digamma(gammaD, expELogTheta, K);
+			for(int k = 0; k < K; k++) {
+				expELogTheta[k] = Math.exp(expELogTheta[k] - digammaSum);
+			}
+
+			// gamma_d = alpha + sum {phi_d_n}
+			Arrays.fill(tempGammaD, alpha);
+			for(int i = 0; i < numNouns; i++) {
+				// phi is proportional to exp(E_log_theta) * exp(E_log_beta)
+				double[] expELogBeta = expectedLogBeta.expRow(rows[i]);
+				double normalizer = VariationalKernels.multiply(expELogTheta, expELogBeta, pows, K);
+				double freqOverNormalizer = freqs[i] / normalizer;
+
+				// the nouns are distinct, so the statistics of the noun are just those of this iteration
+				double[] statistic = statistics[i];
+				for(int k = 0; k < K; k++) {
+					double freqPhi = pows[k] * freqOverNormalizer;
+					tempGammaD[k] += freqPhi;
+					statistic[k] = freqPhi;
+				}
+			}
+
+			distance = Math.sqrt(LargeScaleStochasticVariationalInference.sqDiff(gammaD, tempGammaD));
+			if(numIterations != 0) {
+				if(distance < gammaConvergence || numIterations > maxIterations) {
+					break;
+				}
+			}
+			System.arraycopy(tempGammaD, 0, gammaD, 0, K);
+			numIterations++;
+		}
+	}
+
+	/**
+	 * lambdaPrime[k][n] += freq * phi[k] for every noun n of the document, with the columns of lambdaPrime
+	 * numbered like the rows of the ExpectedLogBeta.
+	 */
+	public void addStatistics(TopicNounStatistics lambdaPrime) {
+		for(int i = 0; i < numNouns; i++) {
+			double[] slab = lambdaPrime.getSlab(rows[i]);
+			double[] statistic = statistics[i];
+			for(int k = 0; k < K; k++) {
+				slab[k] += statistic[k];
+			}
+		}
+	}
+
+	/**
+	 * The number of phi / gamma iterations of the last run.
+	 */
+	public int getIterationCount() {
+		return numIterations;
+	}
+
+	/**
+	 * The euclidean distance between the last two gamma_d's of the last run.
+	 */
+	public double getDistance() {
+		return distance;
+	}
+}
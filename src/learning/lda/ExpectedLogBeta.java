@@ -0,0 +1,117 @@
+package learning.lda;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import util.ParallelRange;
+
+/**
+ * E[log beta[k][n]] = digamma(lambda[k][n]) - digamma(sum over n' of lambda[k][n']) for the nouns of one
+ * document, which is all the E-step of stochastic variational inference reads from lambda.
+ *
+ * Every M-step decays all of lambda, so values cached for other documents are stale by the time they are
+ * needed again. Instead, load() computes the K values of each of the document's nouns, taking the digamma
+ * of the row sums from the sums LazyLambda maintains, so starting an E-step costs O(K * nouns of the
+ * document) digammas rather than O(K * N). Loading the same nouns again without lambda having changed, e.g.
+ * for the logging of a document, is free.
+ *
+ * The values are stored noun by noun, so the E-step reads the K topics of a noun from one array. Once
+ * loaded, the values are only read, so the E-steps of several documents can share them, see DocumentEStep.
+ * The E-step only needs exp(E[log beta]), so that is what is stored, see VariationalKernels.
+ */
+public class ExpectedLogBeta {
+	// nouns per task of a parallel load, each costs K digammas
+	private static final int NOUN_GRAIN = 64;
+
+	private final LazyLambda lambda;
+	private final int K;
+	private final double[] digammaRowSum;
+
+	// rows[j][k] = exp(E[log beta[k][nouns[j]]]), rows are allocated as documents with more nouns come along
+	private double[][] rows = new double[0][];
+	private int[] nouns = new int[0];
+	private int numNouns = 0;
+	// the version of lambda the rows were computed from, -1 = none
+	private long version = -1;
+
+	public ExpectedLogBeta(LazyLambda lambda) {
+		this.lambda = lambda;
+		K = lambda.getTopicCount();
+		digammaRowSum = new double[K];
+	}
+
+	/**
+	 * Compute the rows of nouns[0..numNouns), in that order.
+	 */
+	public void load(int[] nouns, int numNouns) {
+		load(nouns, numNouns, null);
+	}
+
+	/**
+	 * Compute the rows of nouns[0..numNouns), in that order, spreading the nouns over the threads of pool,
+	 * or on this thread if pool is null.
+	 */
+	public void load(final int[] nouns, int numNouns, ForkJoinPool pool) {
+		if(version == lambda.getVersion() && isLoaded(nouns, numNouns)) {
+			return;
+		}
+		if(rows.length < numNouns) {
+			int oldLength = rows.length;
+			rows = Arrays.copyOf(rows, Math.max(numNouns, 2 * oldLength));
+			for(int j = oldLength; j < rows.length; j++) {
+				rows[j] = new double[K];
+			}
+		}
+		if(this.nouns.length < numNouns) {
+			this.nouns = new int[rows.length];
+		}
+		System.arraycopy(nouns, 0, this.nouns, 0, numNouns);
+		this.numNouns = numNouns;
+
+		for(int k = 0; k < K; k++) {
+			digammaRowSum[k] = lambda.getRowSum(k);
+		}
+		VariationalKernels.digamma(digammaRowSum, digammaRowSum, K);
+		new ParallelRange() {
+			@Override
+			protected void run(int from, int to) {
+				computeRows(nouns, from, to);
+			}
+		}.invoke(pool, 0, numNouns, NOUN_GRAIN);
+		version = lambda.getVersion();
+	}
+
+	private void computeRows(int[] nouns, int from, int to) {
+		for(int j = from; j < to; j++) {
+			double[] row = rows[j];
+			int n = nouns[j];
+			// the column of lambda, then its digammas in place, then exp(E[log beta])
+			for(int k = 0; k < K; k++) {
+				row[k] = lambda.get(k, n);
+			}
+			VariationalKernels.digamma(row, row, K);
+			for(int k = 0; k < K; k++) {
+				row[k] = Math.exp(row[k] - digammaRowSum[k]);
+			}
+		}
+	}
+
+	private boolean isLoaded(int[] nouns, int numNouns) {
+		if(numNouns != this.numNouns) {
+			return false;
+		}
+		for(int j = 0; j < numNouns; j++) {
+			if(nouns[j] != this.nouns[j]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return [k] = exp(E[log beta[k][n]]) for the j-th noun of the last load
+	 */
+	public double[] expRow(int j) {
+		return rows[j];
+	}
+}
@@ -0,0 +1,237 @@
+package learning.lda;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Binary checkpoint of a CollapsedGibbsSampler chain, so a long run can be resumed after a crash.
+ *
+ * A checkpoint holds everything the remaining iterations depend on: the topic assignments (z, or the
+ * pair histograms in aggregated mode), the counts, the accumulated cumBeta/cumTheta or CountAverage, totNumSamps,
+ * the seed of the random number generator, the iteration to continue from and the burn-in state.
+ * The layout of every count row is saved along with its counts, since it decides the order in which
+ * the sparse samplers enumerate the row, and so the draws of the resumed chain.
+ * It is written to a temporary file which is then renamed over the previous checkpoint, so a crash
+ * while writing leaves the previous checkpoint intact.
+ *
+ * The state arrays are shared with the caller: save() reads them, restore() overwrites them in place.
+ */
+public class GibbsCheckpoint {
+	private static final int MAGIC = 0x4C444143;
+	private static final int VERSION = 4;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final TopicAssignments z;
+	private final AggregatedGibbsSampler aggregated;
+	private final GibbsCounts counts;
+	private final double[][] cumBeta;
+	private final double[][] cumTheta;
+	private final CountAverage countAverage;
+	private final BurnInDetector burnIn;
+
+	// the first iteration that still has to run
+	public int iteration;
+	public int totNumSamps;
+	// the iteration burn-in ends at, possibly earlier than configured, see BurnInDetector
+	public int burnin;
+	// the random number generator is reseeded with this when the checkpoint is taken, see CollapsedGibbsSampler
+	public long seed;
+
+	/**
+	 * @param z - the topic assignments, or null in aggregated mode
+	 * @param aggregated - the sampler holding the pair histograms in aggregated mode, null otherwise
+	 * @param countAverage - the summed counts with --averaging=counts, in which case cumBeta and cumTheta are null
+	 */
+	public GibbsCheckpoint(TopicAssignments z, AggregatedGibbsSampler aggregated, GibbsCounts counts,
+			double[][] cumBeta, double[][] cumTheta, CountAverage countAverage, BurnInDetector burnIn) {
+		this.z = z;
+		this.aggregated = aggregated;
+		this.counts = counts;
+		this.cumBeta = cumBeta;
+		this.cumTheta = cumTheta;
+		this.countAverage = countAverage;
+		this.burnIn = burnIn;
+	}
+
+	public void save(String path) throws IOException {
+		File target = new File(path);
+		File tmp = new File(path + ".tmp");
+		FileOutputStream file = new FileOutputStream(tmp);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, BUFFER_SIZE));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(counts.getTopicCount());
+			out.writeInt(counts.getVerbCount());
+			out.writeInt(counts.getNounCount());
+			out.writeBoolean(aggregated != null);
+			out.writeBoolean(countAverage != null);
+			out.writeInt(iteration);
+			out.writeInt(totNumSamps);
+			out.writeLong(seed);
+			out.writeInt(burnin);
+			burnIn.save(out);
+
+			if(aggregated != null) {
+				aggregated.saveHistograms(out);
+			} else {
+				out.writeInt(z.size());
+				for(int i = 0; i < z.size(); i++) {
+					out.writeChar(z.get(i));
+				}
+			}
+			writeMatrix(out, counts.CWT);
+			writeMatrix(out, counts.CVT);
+			writeInts(out, counts.numNounsInTopic);
+			writeInts(out, counts.numNounsWithVerb);
+			if(countAverage != null) {
+				out.writeInt(countAverage.numSamples);
+				writeMatrix(out, countAverage.sumCWT);
+				writeMatrix(out, countAverage.sumCVT);
+				for(long value : countAverage.sumNumNounsInTopic) {
+					out.writeLong(value);
+				}
+			} else {
+				for(double[] row : cumBeta) {
+					writeDoubles(out, row);
+				}
+				for(double[] row : cumTheta) {
+					writeDoubles(out, row);
+				}
+			}
+			out.flush();
+			file.getFD().sync();
+		} finally {
+			file.close();
+		}
+		Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Load the checkpoint at path into the state arrays, and set iteration, totNumSamps, seed and burnin.
+	 * @return false if there is no checkpoint at path
+	 * @throws IOException if the checkpoint is unreadable or was written for a different corpus or number of topics
+	 */
+	public boolean restore(String path) throws IOException {
+		File source = new File(path);
+		if(!source.exists()) {
+			return false;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(source), BUFFER_SIZE));
+		try {
+			if(in.readInt() != MAGIC) {
+				throw new IOException(path + " is not a Gibbs checkpoint");
+			}
+			int version = in.readInt();
+			if(version != VERSION) {
+				throw new IOException(path + " has unsupported version " + version);
+			}
+			check(path, "topics", counts.getTopicCount(), in.readInt());
+			check(path, "verbs", counts.getVerbCount(), in.readInt());
+			check(path, "nouns", counts.getNounCount(), in.readInt());
+			if(in.readBoolean() != (aggregated != null)) {
+				throw new IOException(path + " was written " + (aggregated != null ? "without" : "with") + " --aggregated");
+			}
+			if(in.readBoolean() != (countAverage != null)) {
+				throw new IOException(path + " was written " + (countAverage != null ? "without" : "with") + " --averaging=counts");
+			}
+			iteration = in.readInt();
+			totNumSamps = in.readInt();
+			seed = in.readLong();
+			burnin = in.readInt();
+			burnIn.load(in);
+
+			if(aggregated != null) {
+				aggregated.loadHistograms(in);
+			} else {
+				check(path, "tokens", z.size(), in.readInt());
+				for(int i = 0; i < z.size(); i++) {
+					z.set(i, in.readChar());
+				}
+			}
+			readMatrix(in, counts.CWT);
+			readMatrix(in, counts.CVT);
+			readInts(in, counts.numNounsInTopic);
+			readInts(in, counts.numNounsWithVerb);
+			if(countAverage != null) {
+				countAverage.numSamples = in.readInt();
+				readMatrix(in, countAverage.sumCWT);
+				readMatrix(in, countAverage.sumCVT);
+				for(int t = 0; t < countAverage.sumNumNounsInTopic.length; t++) {
+					countAverage.sumNumNounsInTopic[t] = in.readLong();
+				}
+			} else {
+				for(double[] row : cumBeta) {
+					readDoubles(in, row);
+				}
+				for(double[] row : cumTheta) {
+					readDoubles(in, row);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return true;
+	}
+
+	private static void check(String path, String what, int expected, int actual) throws IOException {
+		if(expected != actual) {
+			throw new IOException(path + " was written for " + actual + " " + what + ", expected " + expected);
+		}
+	}
+
+	// per row: whether it is stored densely, then its cols counts
+	private static void writeMatrix(DataOutputStream out, CountMatrix matrix) throws IOException {
+		int cols = matrix.getColumnCount();
+		int[] scratch = new int[cols];
+		for(int row = 0; row < matrix.getRowCount(); row++) {
+			int[] values = matrix.readRow(row, scratch);
+			int base = matrix.rowOffset(row);
+			out.writeBoolean(matrix.isDenseRow(row));
+			for(int col = 0; col < cols; col++) {
+				out.writeInt(values[base + col]);
+			}
+		}
+	}
+
+	private static void readMatrix(DataInputStream in, CountMatrix matrix) throws IOException {
+		int[] values = new int[matrix.getColumnCount()];
+		for(int row = 0; row < matrix.getRowCount(); row++) {
+			boolean dense = in.readBoolean();
+			readInts(in, values);
+			matrix.setRow(row, values, dense);
+		}
+	}
+
+	private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+		for(int value : values) {
+			out.writeInt(value);
+		}
+	}
+
+	private static void readInts(DataInputStream in, int[] values) throws IOException {
+		for(int i = 0; i < values.length; i++) {
+			values[i] = in.readInt();
+		}
+	}
+
+	private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+		for(double value : values) {
+			out.writeDouble(value);
+		}
+	}
+
+	private static void readDoubles(DataInputStream in, double[] values) throws IOException {
+		for(int i = 0; i < values.length; i++) {
+			values[i] = in.readDouble();
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package learning.lda;
+
+import java.io.IOException;
+
+/**
+ * The (v,n) tokens the collapsed Gibbs sampler sweeps over, in corpus order.
+ * Implementations are read-only, so one corpus can be shared by any number of threads.
+ */
+public abstract class GibbsCorpus {
+	public abstract int size();
+
+	// zero-based verb id of token i
+	public abstract int getVerb(int i);
+
+	// zero-based noun id of token i
+	public abstract int getNoun(int i);
+
+	/**
+	 * Parse a vnIdx text file into memory.
+	 * @param vnIdxPath - rows of one-based "verbId,nounId", see data.preprocess.TrainSetToLDAFormatConverter
+	 */
+	public static GibbsCorpus load(String vnIdxPath) throws IOException {
+		return ArrayGibbsCorpus.load(vnIdxPath);
+	}
+}
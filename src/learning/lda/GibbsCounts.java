@@ -0,0 +1,43 @@
+package learning.lda;
+
+/**
+ * The count state of the collapsed Gibbs sampler, together with the Dirichlet hyperparameters
+ * needed to turn the counts into sampling weights.
+ */
+public class GibbsCounts {
+	// CWT(n, t) = number of times noun n has been assigned to topic t
+	public final CountMatrix CWT;
+	// CVT(v, t) = number of times topic t has been assigned to the nouns that ever appear in a (v,n) pair
+	public final CountMatrix CVT;
+	// number of nouns that have been assigned to each topic (i.e. the column sum of CWT)
+	public final int[] numNounsInTopic;
+	// number of nouns associated with each verb (i.e. the row sum of CVT)
+	public final int[] numNounsWithVerb;
+
+	// prior on the topic distribution of a verb
+	public final double alpha;
+	// prior on the noun distribution of a topic
+	public final double gamma;
+
+	public GibbsCounts(CountMatrix CWT, CountMatrix CVT, int[] numNounsInTopic, int[] numNounsWithVerb,
+			double alpha, double gamma) {
+		this.CWT = CWT;
+		this.CVT = CVT;
+		this.numNounsInTopic = numNounsInTopic;
+		this.numNounsWithVerb = numNounsWithVerb;
+		this.alpha = alpha;
+		this.gamma = gamma;
+	}
+
+	public int getTopicCount() {
+		return numNounsInTopic.length;
+	}
+
+	public int getNounCount() {
+		return CWT.getRowCount();
+	}
+
+	public int getVerbCount() {
+		return CVT.getRowCount();
+	}
+}
@@ -0,0 +1,174 @@
+package learning.lda;
+
+import org.apache.commons.math3.special.Gamma;
+
+/**
+ * The collapsed joint log-likelihood log p(nouns, z) = log p(nouns | z) + log p(z) of the Gibbs chain:
+ *   log p(nouns | z) = T * (lgamma(N * gamma) - N * lgamma(gamma))
+ *                      + sum_t [ sum_n lgamma(CWT(n, t) + gamma) - lgamma(numNounsInTopic[t] + N * gamma) ]
+ *   log p(z)         = V * (lgamma(T * alpha) - T * lgamma(alpha))
+ *                      + sum_v [ sum_t lgamma(CVT(v, t) + alpha) - lgamma(numNounsWithVerb[v] + T * alpha) ]
+ *
+ * Computing it from scratch costs (N + V) * T lgammas, but a count going from c to c + 1 only changes its
+ * lgamma term by log(c + prior), so it is kept up to date from the moves of the sampler instead: moving one
+ * token costs six logs, most of them looked up in a table. numNounsWithVerb never changes during sampling,
+ * so its terms stay as computed by recompute().
+ */
+public class GibbsLogLikelihood {
+	// log(c + prior) is tabulated for counts below this
+	private static final int LOG_TABLE_SIZE = 1 << 12;
+	// a count changing by more than this goes through lgamma rather than a sum of logs
+	private static final int MAX_LOG_SUM = 16;
+
+	private final GibbsCounts counts;
+	private final double nGamma;
+	private final double tAlpha;
+	private final double[] logCountPlusGamma;
+	private final double[] logCountPlusAlpha;
+
+	// log p(nouns | z) and log p(z)
+	private double nounPart;
+	private double topicPart;
+	private long numTokens;
+
+	public GibbsLogLikelihood(GibbsCounts counts) {
+		this.counts = counts;
+		nGamma = counts.getNounCount() * counts.gamma;
+		tAlpha = counts.getTopicCount() * counts.alpha;
+		logCountPlusGamma = new double[LOG_TABLE_SIZE];
+		logCountPlusAlpha = new double[LOG_TABLE_SIZE];
+		for(int c = 0; c < LOG_TABLE_SIZE; c++) {
+			logCountPlusGamma[c] = Math.log(c + counts.gamma);
+			logCountPlusAlpha[c] = Math.log(c + counts.alpha);
+		}
+		recompute();
+	}
+
+	/**
+	 * Compute the log-likelihood of the current counts from scratch.
+	 */
+	public void recompute() {
+		int T = counts.getTopicCount();
+		int N = counts.getNounCount();
+		int V = counts.getVerbCount();
+		double gamma = counts.gamma;
+		double alpha = counts.alpha;
+
+		nounPart = T * (Gamma.logGamma(nGamma) - N * Gamma.logGamma(gamma)) + sumLogGamma(counts.CWT, gamma);
+		for(int t = 0; t < T; t++) {
+			nounPart -= Gamma.logGamma(counts.numNounsInTopic[t] + nGamma);
+		}
+
+		topicPart = V * (Gamma.logGamma(tAlpha) - T * Gamma.logGamma(alpha)) + sumLogGamma(counts.CVT, alpha);
+		numTokens = 0;
+		for(int v = 0; v < V; v++) {
+			topicPart -= Gamma.logGamma(counts.numNounsWithVerb[v] + tAlpha);
+			numTokens += counts.numNounsWithVerb[v];
+		}
+	}
+
+	/**
+	 * sum over all entries of lgamma(count + prior), with the zero counts taken care of in bulk
+	 */
+	private static double sumLogGamma(CountMatrix matrix, double prior) {
+		int cols = matrix.getColumnCount();
+		int[] nonzeroCols = new int[cols];
+		int[] nonzeroCounts = new int[cols];
+		long numZeros = 0;
+		double sum = 0.0;
+		for(int row = 0; row < matrix.getRowCount(); row++) {
+			int size = matrix.getNonzero(row, nonzeroCols, nonzeroCounts);
+			for(int i = 0; i < size; i++) {
+				sum += Gamma.logGamma(nonzeroCounts[i] + prior);
+			}
+			numZeros += cols - size;
+		}
+		return sum + numZeros * Gamma.logGamma(prior);
+	}
+
+	public double get() {
+		return nounPart + topicPart;
+	}
+
+	/**
+	 * exp(-log p(nouns | z) / #tokens), the training perplexity of the nouns given the current assignments
+	 */
+	public double getPerplexity() {
+		return Math.exp(-nounPart / numTokens);
+	}
+
+	/**
+	 * A (v,n) token was moved from topic from to topic to, and the counts already reflect it.
+	 */
+	public void moveToken(int v, int n, int from, int to) {
+		nounPart += nounMoveDelta(n, from, to);
+		topicPart += verbMoveDelta(v, from, to);
+	}
+
+	/**
+	 * The change of log p(nouns | z) from moving a token of noun n, with the counts after the move.
+	 */
+	double nounMoveDelta(int n, int from, int to) {
+		int[] numNounsInTopic = counts.numNounsInTopic;
+		return nounRowMoveDelta(n, from, to)
+				- Math.log(numNounsInTopic[to] - 1 + nGamma) + Math.log(numNounsInTopic[from] + nGamma);
+	}
+
+	/**
+	 * The CWT terms of nounMoveDelta, leaving out numNounsInTopic. Only reads the CWT row of n.
+	 */
+	double nounRowMoveDelta(int n, int from, int to) {
+		return logPlusGamma(counts.CWT.get(n, to) - 1) - logPlusGamma(counts.CWT.get(n, from));
+	}
+
+	/**
+	 * The change of log p(z) from moving a token of verb v, with the counts after the move.
+	 * Only reads the CVT row of v.
+	 */
+	double verbMoveDelta(int v, int from, int to) {
+		return logPlusAlpha(counts.CVT.get(v, to) - 1) - logPlusAlpha(counts.CVT.get(v, from));
+	}
+
+	/**
+	 * Account for changes the caller computed itself, e.g. with logGammaDelta.
+	 */
+	void add(double nounDelta, double topicDelta) {
+		nounPart += nounDelta;
+		topicPart += topicDelta;
+	}
+
+	/**
+	 * Account for delta tokens of (v,n) being added to (delta > 0) or removed from topic t, before the counts change.
+	 * numNounsWithVerb is left out, so removing the tokens of a pair and adding them back has to be balanced.
+	 */
+	public void addTokens(int v, int n, int t, int delta) {
+		nounPart += logGammaDelta(counts.CWT.get(n, t), delta, counts.gamma)
+				- logGammaDelta(counts.numNounsInTopic[t], delta, nGamma);
+		topicPart += logGammaDelta(counts.CVT.get(v, t), delta, counts.alpha);
+	}
+
+	/**
+	 * @return lgamma(count + delta + prior) - lgamma(count + prior)
+	 */
+	static double logGammaDelta(int count, int delta, double prior) {
+		if(delta > MAX_LOG_SUM || delta < -MAX_LOG_SUM) {
+			return Gamma.logGamma(count + delta + prior) - Gamma.logGamma(count + prior);
+		}
+		double sum = 0.0;
+		for(int k = 0; k < delta; k++) {
+			sum += Math.log(count + k + prior);
+		}
+		for(int k = 1; k <= -delta; k++) {
+			sum -= Math.log(count - k + prior);
+		}
+		return sum;
+	}
+
+	private double logPlusGamma(int count) {
+		return count < LOG_TABLE_SIZE ? logCountPlusGamma[count] : Math.log(count + counts.gamma);
+	}
+
+	private double logPlusAlpha(int count) {
+		return count < LOG_TABLE_SIZE ? logCountPlusAlpha[count] : Math.log(count + counts.alpha);
+	}
+}
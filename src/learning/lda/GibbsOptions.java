@@ -0,0 +1,262 @@
+package learning.lda;
+
+/**
+ * Command line options for CollapsedGibbsSampler.
+ * The first argument is always the base directory containing the files generated by
+ * data.preprocess.TrainSetToLDAFormatConverter, followed by optional --name=value flags.
+ */
+public class GibbsOptions {
+	public static final String USAGE = "Usage: <baseDir> [--threads=N] [--topics=T] [--sampler=dense|sparse|mh]"
+			+ " [--corpus=vnIdxSmall.txt] [--mmap] [--aggregated] [--checkpoint=ITERS] [--resume]"
+			+ " [--snapshots=binary|text] [--auto-burnin] [--counts=flat|hybrid] [--seed=S] [--chains=K]"
+			+ " [--averaging=estimates|counts] [--parallel=approximate|blocks] [--order=file|sorted]";
+
+	public static enum SamplerKind {
+		// evaluate the conditional of every topic for every token, see DenseTopicSampler
+		DENSE,
+		// SparseLDA bucketed sampling, see SparseTopicSampler
+		SPARSE,
+		// LightLDA-style Metropolis-Hastings with alias tables, see MetropolisHastingsTopicSampler
+		MH
+	}
+
+	public static enum SnapshotFormat {
+		// sparse float rows, see BinarySnapshotWriter
+		BINARY,
+		// tab separated doubles, see TextSnapshotWriter
+		TEXT
+	}
+
+	public static enum CountLayout {
+		// every row a stretch of one flat int[], see DenseCountMatrix
+		FLAT,
+		// rows with few nonzero counts as sorted sparse lists, see HybridCountMatrix
+		HYBRID
+	}
+
+	public static enum ParallelScheme {
+		// per-worker copies of CWT merged after every sweep, see ApproximateDistributedGibbsSampler
+		APPROXIMATE,
+		// disjoint verb x noun blocks sampled in place, see BlockParallelGibbsSampler
+		BLOCKS
+	}
+
+	public static enum TokenOrder {
+		// the order of the vnIdx file
+		FILE,
+		// by verb, and by noun within a verb, see SortedGibbsCorpus
+		SORTED
+	}
+
+	public static enum Averaging {
+		// sum the beta / theta estimates of every sample in double matrices
+		ESTIMATES,
+		// sum the counts of every sample and derive the averages when writing them, see CountAverage
+		COUNTS
+	}
+
+	public String baseDir;
+
+	// number of worker threads sweeping the corpus. 1 = the plain sequential Gibbs sampler,
+	// > 1 = the parallel sampler chosen by parallelScheme
+	public int numThreads = 1;
+
+	// how the corpus is split among the worker threads when numThreads > 1
+	public ParallelScheme parallelScheme = ParallelScheme.APPROXIMATE;
+
+	public int numTopics = 300;
+
+	public SamplerKind sampler = SamplerKind.DENSE;
+
+	// the vnIdx file in baseDir to train on, see getCorpusFile()
+	public String corpusFile = null;
+
+	// keep the tokens and topic assignments in memory mapped files instead of on the heap
+	public boolean memoryMapped = false;
+
+	// sweep over distinct (v,n) pairs with their counts rather than over tokens, see AggregatedGibbsSampler
+	public boolean aggregated = false;
+
+	// number of iterations between two checkpoints of the chain, see GibbsCheckpoint
+	public int checkpointInterval = 25;
+
+	// continue from the last checkpoint in baseDir, if there is one
+	public boolean resume = false;
+
+	// format of the betaAtIter / thetaAtIter snapshots
+	public SnapshotFormat snapshotFormat = SnapshotFormat.BINARY;
+
+	// end burn-in as soon as the log-likelihood plateaus instead of after a fixed number of iterations
+	public boolean autoBurnin = false;
+
+	// layout of CWT and CVT, see getCountLayout()
+	public CountLayout countLayout = null;
+
+	// seed of the random number generator, for reproducible runs. null = a new seed every run
+	public Long seed = null;
+
+	// number of independent chains run side by side on the same corpus, see MultiChainGibbsSampler
+	public int numChains = 1;
+
+	// the order in which a sweep visits the tokens
+	public TokenOrder tokenOrder = TokenOrder.FILE;
+
+	// how the samples after burn-in are averaged into betaAvg / thetaAvg
+	public Averaging averaging = Averaging.ESTIMATES;
+
+	public static GibbsOptions parse(String[] args) {
+		if(args.length < 1 || args[0].startsWith("--")) {
+			throw new IllegalArgumentException("Missing base directory");
+		}
+
+		GibbsOptions options = new GibbsOptions();
+		options.baseDir = args[0];
+		if(!options.baseDir.endsWith("/")) {
+			options.baseDir += "/";
+		}
+
+		for(int i = 1; i < args.length; i++) {
+			String arg = args[i];
+			if(!arg.startsWith("--")) {
+				throw new IllegalArgumentException("Unexpected argument " + arg);
+			}
+			int eq = arg.indexOf('=');
+			String name = eq < 0 ? arg.substring(2) : arg.substring(2, eq);
+			String value = eq < 0 ? null : arg.substring(eq + 1);
+
+			if(name.equals("threads")) {
+				options.numThreads = parsePositiveInt(name, value);
+			} else if(name.equals("topics")) {
+				options.numTopics = parsePositiveInt(name, value);
+			} else if(name.equals("sampler")) {
+				options.sampler = parseEnum(SamplerKind.class, name, value);
+			} else if(name.equals("corpus")) {
+				options.corpusFile = parseString(name, value);
+			} else if(name.equals("mmap")) {
+				options.memoryMapped = parseFlag(name, value);
+			} else if(name.equals("aggregated")) {
+				options.aggregated = parseFlag(name, value);
+			} else if(name.equals("checkpoint")) {
+				options.checkpointInterval = parsePositiveInt(name, value);
+			} else if(name.equals("resume")) {
+				options.resume = parseFlag(name, value);
+			} else if(name.equals("snapshots")) {
+				options.snapshotFormat = parseEnum(SnapshotFormat.class, name, value);
+			} else if(name.equals("auto-burnin")) {
+				options.autoBurnin = parseFlag(name, value);
+			} else if(name.equals("counts")) {
+				options.countLayout = parseEnum(CountLayout.class, name, value);
+			} else if(name.equals("seed")) {
+				options.seed = parseLong(name, value);
+			} else if(name.equals("chains")) {
+				options.numChains = parsePositiveInt(name, value);
+			} else if(name.equals("parallel")) {
+				options.parallelScheme = parseEnum(ParallelScheme.class, name, value);
+			} else if(name.equals("order")) {
+				options.tokenOrder = parseEnum(TokenOrder.class, name, value);
+			} else if(name.equals("averaging")) {
+				options.averaging = parseEnum(Averaging.class, name, value);
+			} else {
+				throw new IllegalArgumentException("Unknown option --" + name);
+			}
+		}
+
+		if(options.aggregated && (options.numThreads > 1 || options.memoryMapped || options.sampler != SamplerKind.DENSE)) {
+			throw new IllegalArgumentException("--aggregated only supports the single threaded, in-memory, dense sampler");
+		}
+		if(options.numChains > 1 && (options.aggregated || options.numThreads > 1 || options.resume || options.autoBurnin)) {
+			throw new IllegalArgumentException("--chains runs every chain on one thread, and doesn't support"
+					+ " --aggregated, --threads, --resume or --auto-burnin");
+		}
+		if(options.tokenOrder == TokenOrder.SORTED && (options.aggregated || options.memoryMapped)) {
+			throw new IllegalArgumentException("--order=sorted keeps a sorted copy of the tokens in memory, and doesn't"
+					+ " support --aggregated or --mmap");
+		}
+		if(options.numChains > 1 && options.averaging != Averaging.ESTIMATES) {
+			throw new IllegalArgumentException("--chains aligns the topics of the chains on their estimates, and only"
+					+ " supports --averaging=estimates");
+		}
+		return options;
+	}
+
+	/**
+	 * The file in baseDir to train on. Defaults to vnIdxSmall.txt, or vnCountIdxSmall.txt in aggregated mode.
+	 */
+	public String getCorpusFile() {
+		if(corpusFile != null) {
+			return corpusFile;
+		}
+		return aggregated ? "vnCountIdxSmall.txt" : "vnIdxSmall.txt";
+	}
+
+	/**
+	 * The layout of the count matrices. Defaults to HYBRID for the sparse and Metropolis-Hastings samplers,
+	 * which enumerate the nonzero counts of a row, and to FLAT for the dense sampler, which reads whole rows.
+	 */
+	public CountLayout getCountLayout() {
+		if(countLayout != null) {
+			return countLayout;
+		}
+		return sampler == SamplerKind.DENSE ? CountLayout.FLAT : CountLayout.HYBRID;
+	}
+
+	/**
+	 * The binary token file for getCorpusFile(), see MappedGibbsCorpus
+	 */
+	public String getBinaryCorpusFile() {
+		String name = getCorpusFile();
+		if(name.endsWith(".txt")) {
+			name = name.substring(0, name.length() - 4);
+		}
+		return name + ".bin";
+	}
+
+	private static String parseString(String name, String value) {
+		if(value == null || value.isEmpty()) {
+			throw new IllegalArgumentException("--" + name + " expects a value");
+		}
+		return value;
+	}
+
+	private static boolean parseFlag(String name, String value) {
+		if(value == null || value.equalsIgnoreCase("true")) {
+			return true;
+		}
+		if(value.equalsIgnoreCase("false")) {
+			return false;
+		}
+		throw new IllegalArgumentException("--" + name + " expects true or false, got " + value);
+	}
+
+	private static <E extends Enum<E>> E parseEnum(Class<E> type, String name, String value) {
+		if(value != null) {
+			for(E constant : type.getEnumConstants()) {
+				if(constant.name().equalsIgnoreCase(value)) {
+					return constant;
+				}
+			}
+		}
+		throw new IllegalArgumentException("Unknown value for --" + name + ": " + value);
+	}
+
+	private static long parseLong(String name, String value) {
+		try {
+			return Long.parseLong(value);
+		} catch(NumberFormatException e) {
+			throw new IllegalArgumentException("--" + name + " expects an integer, got " + value);
+		}
+	}
+
+	private static int parsePositiveInt(String name, String value) {
+		int result;
+		try {
+			result = Integer.parseInt(value);
+		} catch(NumberFormatException e) {
+			throw new IllegalArgumentException("--" + name + " expects an integer, got " + value);
+		}
+		if(result < 1) {
+			throw new IllegalArgumentException("--" + name + " must be positive, got " + value);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,311 @@
+package learning.lda;
+
+import java.util.Arrays;
+
+/**
+ * A count matrix that picks a dense or a sparse layout for every row, based on how many of its counts are nonzero.
+ *
+ * A sparse row is a list of (count, topic) pairs packed into one int each, count in the high bits, and kept
+ * sorted by decreasing count, so the topics that are looked up and enumerated most come first. A row is
+ * stored as a plain int[cols] instead once more than 1 / DENSE_FRACTION of its counts are nonzero, or one of
+ * its counts no longer fits in the packed form, and goes back to sparse when it drops below half that.
+ * Most nouns are only ever seen with a handful of topics, so for a large vocabulary this takes a fraction
+ * of the memory of DenseCountMatrix, and enumerating a row's topics costs O(nonzero) instead of O(cols).
+ */
+public class HybridCountMatrix extends CountMatrix {
+	private static final int DENSE_FRACTION = 4;
+	private static final int INITIAL_ROW_CAPACITY = 4;
+
+	private final int topicBits;
+	private final int topicMask;
+	private final int maxSparseCount;
+
+	// data[row] = the int[cols] of a dense row, or the packed entries of a sparse row (null while it is empty)
+	private final int[][] data;
+	private final boolean[] dense;
+	// number of nonzero counts of each row, which for sparse rows is the number of entries in use
+	private final int[] size;
+
+	public HybridCountMatrix(int rows, int cols) {
+		super(rows, cols);
+		topicBits = 32 - Integer.numberOfLeadingZeros(Math.max(1, cols - 1));
+		topicMask = (1 << topicBits) - 1;
+		maxSparseCount = (1 << (31 - topicBits)) - 1;
+		data = new int[rows][];
+		dense = new boolean[rows];
+		size = new int[rows];
+	}
+
+	public HybridCountMatrix(HybridCountMatrix other) {
+		this(other.rows, other.cols);
+		copyFrom(other);
+	}
+
+	@Override
+	public CountMatrix copy() {
+		return new HybridCountMatrix(this);
+	}
+
+	@Override
+	public void copyFrom(CountMatrix matrix) {
+		checkSameShape(matrix);
+		HybridCountMatrix other = (HybridCountMatrix) matrix;
+		for(int row = 0; row < rows; row++) {
+			int[] source = other.data[row];
+			if(source == null) {
+				data[row] = null;
+			} else if(data[row] != null && data[row].length == source.length) {
+				System.arraycopy(source, 0, data[row], 0, source.length);
+			} else {
+				data[row] = source.clone();
+			}
+		}
+		System.arraycopy(other.dense, 0, dense, 0, rows);
+		System.arraycopy(other.size, 0, size, 0, rows);
+	}
+
+	/**
+	 * @return the number of rows currently stored densely
+	 */
+	public int getDenseRowCount() {
+		int count = 0;
+		for(boolean isDense : dense) {
+			if(isDense) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public int get(int row, int col) {
+		int[] entries = data[row];
+		if(dense[row]) {
+			return entries[col];
+		}
+		for(int i = 0; i < size[row]; i++) {
+			if((entries[i] & topicMask) == col) {
+				return entries[i] >>> topicBits;
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public void add(int row, int col, int delta) {
+		if(delta == 0) {
+			return;
+		}
+		if(dense[row]) {
+			addDense(row, col, delta);
+			return;
+		}
+
+		int[] entries = data[row];
+		int n = size[row];
+		int i = 0;
+		while(i < n && (entries[i] & topicMask) != col) {
+			i++;
+		}
+		int count = (i < n ? entries[i] >>> topicBits : 0) + delta;
+		if(count < 0) {
+			throw new IllegalArgumentException("Count at (" + row + ", " + col + ") would become " + count);
+		}
+		if(count > maxSparseCount || (i == n && n + 1 > cols / DENSE_FRACTION)) {
+			toDense(row);
+			addDense(row, col, delta);
+			return;
+		}
+
+		if(i == n) {
+			if(entries == null) {
+				entries = data[row] = new int[INITIAL_ROW_CAPACITY];
+			} else if(n == entries.length) {
+				entries = data[row] = Arrays.copyOf(entries, 2 * n);
+			}
+			entries[n] = (count << topicBits) | col;
+			size[row] = n + 1;
+			moveUp(entries, n);
+		} else if(count == 0) {
+			System.arraycopy(entries, i + 1, entries, i, n - i - 1);
+			size[row] = n - 1;
+		} else {
+			entries[i] = (count << topicBits) | col;
+			if(delta > 0) {
+				moveUp(entries, i);
+			} else {
+				moveDown(entries, i, n);
+			}
+		}
+	}
+
+	@Override
+	public int getNonzero(int row, int[] nonzeroCols, int[] counts) {
+		int[] entries = data[row];
+		if(dense[row]) {
+			int n = 0;
+			for(int col = 0; col < cols; col++) {
+				if(entries[col] != 0) {
+					nonzeroCols[n] = col;
+					counts[n++] = entries[col];
+				}
+			}
+			return n;
+		}
+		for(int i = 0; i < size[row]; i++) {
+			nonzeroCols[i] = entries[i] & topicMask;
+			counts[i] = entries[i] >>> topicBits;
+		}
+		return size[row];
+	}
+
+	@Override
+	public int[] readRow(int row, int[] scratch) {
+		if(dense[row]) {
+			return data[row];
+		}
+		Arrays.fill(scratch, 0, cols, 0);
+		int[] entries = data[row];
+		for(int i = 0; i < size[row]; i++) {
+			scratch[entries[i] & topicMask] = entries[i] >>> topicBits;
+		}
+		return scratch;
+	}
+
+	@Override
+	public int rowOffset(int row) {
+		return 0;
+	}
+
+	@Override
+	public boolean isDenseRow(int row) {
+		return dense[row];
+	}
+
+	@Override
+	public void setRow(int row, int[] values) {
+		int n = countNonzero(values);
+		setRow(row, values, dense[row] ? n >= cols / (2 * DENSE_FRACTION) : n > cols / DENSE_FRACTION);
+	}
+
+	@Override
+	public void setRow(int row, int[] values, boolean makeDense) {
+		int n = countNonzero(values);
+		boolean fitsSparse = true;
+		for(int col = 0; col < cols && fitsSparse; col++) {
+			fitsSparse = values[col] >= 0 && values[col] <= maxSparseCount;
+		}
+		size[row] = n;
+		if(makeDense || !fitsSparse) {
+			if(!dense[row]) {
+				data[row] = new int[cols];
+				dense[row] = true;
+			}
+			System.arraycopy(values, 0, data[row], 0, cols);
+		} else {
+			dense[row] = false;
+			data[row] = pack(values, n);
+		}
+	}
+
+	@Override
+	public void copyColumns(int fromCol, int toCol, int[] out) {
+		int width = toCol - fromCol;
+		for(int row = 0; row < rows; row++) {
+			int[] entries = data[row];
+			if(dense[row]) {
+				for(int c = 0; c < width; c++) {
+					out[c * rows + row] = entries[fromCol + c];
+				}
+				continue;
+			}
+			for(int c = 0; c < width; c++) {
+				out[c * rows + row] = 0;
+			}
+			for(int i = 0; i < size[row]; i++) {
+				int col = entries[i] & topicMask;
+				if(col >= fromCol && col < toCol) {
+					out[(col - fromCol) * rows + row] = entries[i] >>> topicBits;
+				}
+			}
+		}
+	}
+
+	private int countNonzero(int[] values) {
+		int n = 0;
+		for(int col = 0; col < cols; col++) {
+			if(values[col] != 0) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	private void addDense(int row, int col, int delta) {
+		int[] counts = data[row];
+		int old = counts[col];
+		counts[col] = old + delta;
+		if(old == 0) {
+			size[row]++;
+		} else if(counts[col] == 0) {
+			size[row]--;
+			if(size[row] < cols / (2 * DENSE_FRACTION)) {
+				toSparse(row);
+			}
+		}
+	}
+
+	private void toDense(int row) {
+		data[row] = readRow(row, new int[cols]);
+		dense[row] = true;
+	}
+
+	// only if every count fits, otherwise the row stays dense
+	private void toSparse(int row) {
+		int[] counts = data[row];
+		for(int col = 0; col < cols; col++) {
+			if(counts[col] < 0 || counts[col] > maxSparseCount) {
+				return;
+			}
+		}
+		data[row] = pack(counts, size[row]);
+		dense[row] = false;
+	}
+
+	// the n nonzero values as sorted packed entries, with some room to grow
+	private int[] pack(int[] values, int n) {
+		int[] entries = new int[Math.max(INITIAL_ROW_CAPACITY, 2 * n)];
+		int i = 0;
+		for(int col = 0; col < cols; col++) {
+			if(values[col] != 0) {
+				entries[i++] = (values[col] << topicBits) | col;
+			}
+		}
+		// decreasing order
+		Arrays.sort(entries, 0, n);
+		for(int lo = 0, hi = n - 1; lo < hi; lo++, hi--) {
+			int tmp = entries[lo];
+			entries[lo] = entries[hi];
+			entries[hi] = tmp;
+		}
+		return entries;
+	}
+
+	private static void moveUp(int[] entries, int i) {
+		int entry = entries[i];
+		while(i > 0 && entries[i - 1] < entry) {
+			entries[i] = entries[i - 1];
+			i--;
+		}
+		entries[i] = entry;
+	}
+
+	private static void moveDown(int[] entries, int i, int n) {
+		int entry = entries[i];
+		while(i + 1 < n && entries[i + 1] > entry) {
+			entries[i] = entries[i + 1];
+			i++;
+		}
+		entries[i] = entry;
+	}
+}
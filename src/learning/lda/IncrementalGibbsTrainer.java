@@ -0,0 +1,511 @@
+package learning.lda;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import util.XoroshiroRandom;
+
+/**
+ * Adds new (verb, noun) observations to a chain trained by CollapsedGibbsSampler, without retraining it.
+ *
+ * The chain is the vocabulary, the corpus and the topic assignments z.txt in baseDir. The new observations
+ * are read from a file in the format of the input of data.preprocess.TrainSetToLDAFormatConverter, and are added
+ * to the corpus: a pair already in the corpus gets more tokens, verbs and nouns never seen before get the next
+ * free ids, so the ids of the existing model stay valid. The new tokens start from a draw of the conditional
+ * given the counts of the existing chain, then only the tokens of the verbs that got new tokens are resampled,
+ * for a few sweeps. The betaAvg/thetaAvg estimates are averaged over the last of them.
+ *
+ * If the corpus only has some of the verbs of the vocabulary, like the top verbs of vnIdxSmall.txt, only the
+ * observations of those verbs are added, so that it stays the same subset. New verbs need the full corpus.
+ *
+ * baseDir is updated in place: the vocabulary, the corpus (still sorted by verb), its vnCountIdx file, z.txt
+ * and the averages. All of them are first written to temporary files, which are renamed over the old ones only
+ * once every one has been written, so a failure before that leaves the old chain as it was. The vocabulary only
+ * grows, so it is renamed first, and the old corpus and z.txt stay valid with it until they are renamed too.
+ * The other files derived from the old corpus, its binary token file and the checkpoint, are deleted. The
+ * other corpora of data.preprocess.TrainSetToLDAFormatConverter in baseDir are left as they are.
+ */
+public class IncrementalGibbsTrainer {
+	public static final String USAGE = "Usage: <baseDir> <newTrainFile> [--sweeps=K] [--samples=S]"
+			+ " [--topics=T] [--sampler=dense|sparse|mh] [--corpus=vnIdxSmall.txt] [--counts=flat|hybrid] [--seed=S]";
+
+	private static final int DEFAULT_SWEEPS = 50;
+	private static final int DEFAULT_SAMPLES = 10;
+
+	public static void main(String[] args) throws IOException {
+		if(args.length < 2) {
+			System.err.println(USAGE);
+			return;
+		}
+		String newTrainFile = args[1];
+		int numSweeps = DEFAULT_SWEEPS;
+		int numSamples = DEFAULT_SAMPLES;
+		List<String> gibbsArgs = new ArrayList<String>();
+		gibbsArgs.add(args[0]);
+		GibbsOptions options;
+		try {
+			for(int i = 2; i < args.length; i++) {
+				if(args[i].startsWith("--sweeps=")) {
+					numSweeps = Integer.parseInt(args[i].substring("--sweeps=".length()));
+				} else if(args[i].startsWith("--samples=")) {
+					numSamples = Integer.parseInt(args[i].substring("--samples=".length()));
+				} else {
+					gibbsArgs.add(args[i]);
+				}
+			}
+			options = GibbsOptions.parse(gibbsArgs.toArray(new String[gibbsArgs.size()]));
+			if(options.aggregated || options.memoryMapped || options.numThreads > 1) {
+				throw new IllegalArgumentException("Incremental training only supports the single threaded, in-memory token corpus");
+			}
+			if(numSweeps < 1 || numSamples < 1) {
+				throw new IllegalArgumentException("--sweeps and --samples must be positive");
+			}
+		} catch(IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			return;
+		}
+		numSamples = Math.min(numSamples, numSweeps);
+		String baseDir = options.baseDir;
+		int T = options.numTopics;
+		double gamma = 0.01;
+		double alpha = 50.0 / T;
+
+		/*######################################
+		# THE SAVED CHAIN
+		######################################*/
+		List<String> verbIdx = readLines(baseDir + "verbIdx.txt");
+		List<String> nounIdx = readLines(baseDir + "nounIdx.txt");
+		Map<String, Integer> verbToId = toIds(verbIdx);
+		Map<String, Integer> nounToId = toIds(nounIdx);
+		int savedT = readTopicCount(baseDir + "thetaAvg.txt");
+		if(savedT != T) {
+			System.err.println("The chain in " + baseDir + " has " + savedT + " topics, not " + T + ", pass --topics="
+					+ savedT);
+			return;
+		}
+		GibbsCorpus oldCorpus = GibbsCorpus.load(baseDir + options.getCorpusFile());
+		int[] oldZ = readTopics(baseDir + "z.txt", oldCorpus.size(), T);
+
+		/*######################################
+		# THE NEW OBSERVATIONS
+		######################################*/
+		// new verbs and nouns get ids in alphabetical order after the existing ones, like the converter assigns them
+		List<String[]> observations = readObservations(newTrainFile);
+		// a corpus without some of the verbs is a subset of verbs, like vnIdxSmall.txt, and only gets
+		// observations of its own verbs, so that it stays that subset
+		boolean[] inCorpus = new boolean[verbIdx.size()];
+		for(int i = 0; i < oldCorpus.size(); i++) {
+			inCorpus[oldCorpus.getVerb(i)] = true;
+		}
+		boolean isVerbSubset = false;
+		for(boolean in : inCorpus) {
+			isVerbSubset |= !in;
+		}
+		if(isVerbSubset) {
+			List<String[]> subsetObservations = new ArrayList<String[]>();
+			for(String[] observation : observations) {
+				Integer v = verbToId.get(observation[0]);
+				if(v != null && inCorpus[v]) {
+					subsetObservations.add(observation);
+				}
+			}
+			System.out.println(options.getCorpusFile() + " only has some of the verbs, skipping the "
+					+ (observations.size() - subsetObservations.size()) + " observations of other verbs");
+			observations = subsetObservations;
+		}
+		TreeSet<String> newVerbs = new TreeSet<String>();
+		TreeSet<String> newNouns = new TreeSet<String>();
+		long numNewTokens = 0;
+		for(String[] observation : observations) {
+			if(!verbToId.containsKey(observation[0])) {
+				newVerbs.add(observation[0]);
+			}
+			if(!nounToId.containsKey(observation[1])) {
+				newNouns.add(observation[1]);
+			}
+			numNewTokens += Integer.parseInt(observation[2]);
+		}
+		for(String verb : newVerbs) {
+			verbToId.put(verb, verbIdx.size());
+			verbIdx.add(verb);
+		}
+		for(String noun : newNouns) {
+			nounToId.put(noun, nounIdx.size());
+			nounIdx.add(noun);
+		}
+		int V = verbIdx.size();
+		int N = nounIdx.size();
+		if(oldCorpus.size() + numNewTokens > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("Too many tokens for an in-memory corpus");
+		}
+		int C = (int) (oldCorpus.size() + numNewTokens);
+		System.out.println(numNewTokens + " new tokens, " + newVerbs.size() + " new verbs, " + newNouns.size()
+				+ " new nouns, " + C + " tokens in total");
+
+		// all tokens, sorted by verb: the old ones first within each verb, in their old order, then the new ones
+		int[] verbStart = new int[V + 1];
+		for(int i = 0; i < oldCorpus.size(); i++) {
+			verbStart[oldCorpus.getVerb(i) + 1]++;
+		}
+		for(String[] observation : observations) {
+			verbStart[verbToId.get(observation[0]) + 1] += Integer.parseInt(observation[2]);
+		}
+		for(int v = 0; v < V; v++) {
+			verbStart[v + 1] += verbStart[v];
+		}
+		int[] next = verbStart.clone();
+		int[] verbs = new int[C];
+		int[] nouns = new int[C];
+		int[] z = new int[C];
+		boolean[] isNew = new boolean[C];
+		for(int i = 0; i < oldCorpus.size(); i++) {
+			int v = oldCorpus.getVerb(i);
+			int pos = next[v]++;
+			verbs[pos] = v;
+			nouns[pos] = oldCorpus.getNoun(i);
+			z[pos] = oldZ[i];
+		}
+		oldZ = null;
+		boolean[] affected = new boolean[V];
+		for(String[] observation : observations) {
+			int v = verbToId.get(observation[0]);
+			int n = nounToId.get(observation[1]);
+			affected[v] = true;
+			for(int count = Integer.parseInt(observation[2]); count > 0; count--) {
+				int pos = next[v]++;
+				verbs[pos] = v;
+				nouns[pos] = n;
+				isNew[pos] = true;
+			}
+		}
+
+		/*######################################
+		# COUNTS
+		######################################*/
+		boolean hybridCounts = options.getCountLayout() == GibbsOptions.CountLayout.HYBRID;
+		CountMatrix CWT = hybridCounts ? new HybridCountMatrix(N, T) : new DenseCountMatrix(N, T);
+		CountMatrix CVT = hybridCounts ? new HybridCountMatrix(V, T) : new DenseCountMatrix(V, T);
+		GibbsCounts counts = new GibbsCounts(CWT, CVT, new int[T], new int[V], alpha, gamma);
+		for(int i = 0; i < C; i++) {
+			if(!isNew[i]) {
+				addToken(counts, verbs[i], nouns[i], z[i], 1);
+			}
+		}
+
+		long seed = options.seed != null ? options.seed : XoroshiroRandom.newSeed();
+		System.out.println("random seed = " + seed);
+		Random r = new XoroshiroRandom(seed);
+
+		// each new token is drawn given the old tokens and the new tokens before it
+		DenseTopicKernel kernel = new DenseTopicKernel(counts);
+		int[] nounScratch = new int[T];
+		int[] verbScratch = new int[T];
+		for(int i = 0; i < C; i++) {
+			if(isNew[i]) {
+				int v = verbs[i];
+				int n = nouns[i];
+				kernel.fill(CWT.readRow(n, nounScratch), CWT.rowOffset(n), CVT.readRow(v, verbScratch), CVT.rowOffset(v));
+				z[i] = kernel.draw(r.nextDouble());
+				addToken(counts, v, n, z[i], 1);
+				kernel.updateTopic(z[i]);
+			}
+		}
+		isNew = null;
+
+		/*######################################
+		# LOCAL SWEEPS
+		######################################*/
+		long numAffectedTokens = 0;
+		for(int v = 0; v < V; v++) {
+			if(affected[v]) {
+				numAffectedTokens += verbStart[v + 1] - verbStart[v];
+			}
+		}
+		System.out.println("resampling the " + numAffectedTokens + " tokens of the verbs with new tokens, "
+				+ numSweeps + " sweeps with the " + options.sampler + " sampler");
+
+		GibbsLogLikelihood logLikelihood = new GibbsLogLikelihood(counts);
+		System.out.println("initial log-likelihood = " + logLikelihood.get());
+		TopicSampler sampler = CollapsedGibbsSampler.createTopicSampler(options.sampler, counts, r);
+		double[][] cumBeta = new double[T][N];
+		double[][] cumTheta = new double[V][T];
+		for(int sweep = 0; sweep < numSweeps; sweep++) {
+			sampler.startSweep();
+			for(int v = 0; v < V; v++) {
+				if(!affected[v]) {
+					continue;
+				}
+				for(int i = verbStart[v]; i < verbStart[v + 1]; i++) {
+					int tau = z[i];
+					int newTopic = sampler.resample(v, nouns[i], tau);
+					if(newTopic != tau) {
+						z[i] = newTopic;
+						logLikelihood.moveToken(v, nouns[i], tau, newTopic);
+					}
+				}
+			}
+			System.out.println("sweep " + sweep + ": log-likelihood = " + logLikelihood.get()
+					+ ", perplexity = " + logLikelihood.getPerplexity());
+			if(sweep >= numSweeps - numSamples) {
+				accumulate(counts, cumBeta, cumTheta);
+			}
+		}
+
+		/*######################################
+		# THE UPDATED CHAIN
+		######################################*/
+		String countFile = getCountFile(options.getCorpusFile());
+		List<PendingFile> pending = new ArrayList<PendingFile>();
+		boolean written = false;
+		try {
+			writeLines(pend(pending, baseDir + "verbIdx.txt"), verbIdx);
+			writeLines(pend(pending, baseDir + "nounIdx.txt"), nounIdx);
+			PrintWriter corpusWriter = pend(pending, baseDir + options.getCorpusFile());
+			PrintWriter zWriter = pend(pending, baseDir + "z.txt");
+			for(int i = 0; i < C; i++) {
+				corpusWriter.println((verbs[i] + 1) + "," + (nouns[i] + 1));
+				zWriter.println(z[i]);
+			}
+			if(countFile != null) {
+				writeCounts(pend(pending, baseDir + countFile), nouns, verbStart);
+			}
+			writeAverage(pend(pending, baseDir + "betaAvg.txt"), cumBeta, numSamples);
+			writeAverage(pend(pending, baseDir + "thetaAvg.txt"), cumTheta, numSamples);
+			for(PendingFile file : pending) {
+				file.finish();
+			}
+			written = true;
+		} finally {
+			if(!written) {
+				for(PendingFile file : pending) {
+					file.discard();
+				}
+			}
+		}
+		for(PendingFile file : pending) {
+			file.commit();
+		}
+
+		for(String stale : new String[] {options.getBinaryCorpusFile(), "checkpoint.bin"}) {
+			if(new File(baseDir + stale).delete()) {
+				System.out.println("deleted " + baseDir + stale + ", which was derived from the old corpus");
+			}
+		}
+	}
+
+	/**
+	 * The vnCountIdx file that TrainSetToLDAFormatConverter writes along with the vnIdx file corpusFile,
+	 * or null if corpusFile is not named like one of its vnIdx files.
+	 */
+	private static String getCountFile(String corpusFile) {
+		return corpusFile.startsWith("vnIdx") ? "vnCountIdx" + corpusFile.substring("vnIdx".length()) : null;
+	}
+
+	/**
+	 * A text file of the updated chain, written to path.tmp and renamed to path by commit().
+	 */
+	private static class PendingFile {
+		private final File target;
+		private final File tmp;
+		private final FileOutputStream stream;
+		private final PrintWriter writer;
+
+		PendingFile(String path) throws IOException {
+			target = new File(path);
+			tmp = new File(path + ".tmp");
+			stream = new FileOutputStream(tmp);
+			writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(stream)));
+		}
+
+		// PrintWriter swallows the IOExceptions of the writes, so they are only found here
+		void finish() throws IOException {
+			writer.flush();
+			if(writer.checkError()) {
+				writer.close();
+				throw new IOException("Could not write " + tmp);
+			}
+			stream.getFD().sync();
+			writer.close();
+		}
+
+		void commit() throws IOException {
+			Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		void discard() {
+			writer.close();
+			tmp.delete();
+		}
+	}
+
+	private static PrintWriter pend(List<PendingFile> pending, String path) throws IOException {
+		PendingFile file = new PendingFile(path);
+		pending.add(file);
+		return file.writer;
+	}
+
+	/**
+	 * Write the "verbId,nounId,count" rows of the distinct pairs of the tokens, sorted by verb then noun,
+	 * like the vnCountIdx files of TrainSetToLDAFormatConverter.
+	 * @param verbStart - the tokens of verb v are [verbStart[v], verbStart[v + 1])
+	 */
+	private static void writeCounts(PrintWriter printWriter, int[] nouns, int[] verbStart) {
+		for(int v = 0; v + 1 < verbStart.length; v++) {
+			int[] verbNouns = Arrays.copyOfRange(nouns, verbStart[v], verbStart[v + 1]);
+			Arrays.sort(verbNouns);
+			for(int i = 0; i < verbNouns.length; ) {
+				int j = i;
+				while(j < verbNouns.length && verbNouns[j] == verbNouns[i]) {
+					j++;
+				}
+				printWriter.println((v + 1) + "," + (verbNouns[i] + 1) + "," + (j - i));
+				i = j;
+			}
+		}
+	}
+
+	private static void addToken(GibbsCounts counts, int v, int n, int t, int delta) {
+		counts.CWT.add(n, t, delta);
+		counts.CVT.add(v, t, delta);
+		counts.numNounsInTopic[t] += delta;
+		counts.numNounsWithVerb[v] += delta;
+	}
+
+	// cumBeta += the current estimate of beta, cumTheta += that of theta
+	private static void accumulate(GibbsCounts counts, double[][] cumBeta, double[][] cumTheta) {
+		int T = counts.getTopicCount();
+		int N = counts.getNounCount();
+		int V = counts.getVerbCount();
+		int[] scratch = new int[T];
+		for(int n = 0; n < N; n++) {
+			int[] row = counts.CWT.readRow(n, scratch);
+			int base = counts.CWT.rowOffset(n);
+			for(int t = 0; t < T; t++) {
+				cumBeta[t][n] += (row[base + t] + counts.gamma) / (counts.numNounsInTopic[t] + N * counts.gamma);
+			}
+		}
+		for(int v = 0; v < V; v++) {
+			int[] row = counts.CVT.readRow(v, scratch);
+			int base = counts.CVT.rowOffset(v);
+			for(int t = 0; t < T; t++) {
+				cumTheta[v][t] += (row[base + t] + counts.alpha) / (counts.numNounsWithVerb[v] + T * counts.alpha);
+			}
+		}
+	}
+
+	private static void writeAverage(PrintWriter printWriter, double[][] cum, int numSamples) {
+		for(double[] row : cum) {
+			for(int j = 0; j < row.length; j++) {
+				if(j > 0) {
+					printWriter.print("\t");
+				}
+				printWriter.print(row[j] / numSamples);
+			}
+			printWriter.println();
+		}
+	}
+
+	/**
+	 * @return the positive (verb, noun, count) rows of a TrainSetToLDAFormatConverter input file
+	 */
+	private static List<String[]> readObservations(String path) throws IOException {
+		List<String[]> observations = new ArrayList<String[]>();
+		for(String line : readLines(path)) {
+			String[] toks = line.split("\t");
+			if(Integer.parseInt(toks[3].trim()) == 1) {
+				observations.add(new String[] {toks[0], toks[1], toks[2].trim()});
+			}
+		}
+		return observations;
+	}
+
+	/**
+	 * @return the number of topics of a thetaAvg.txt, the number of columns of its rows
+	 */
+	private static int readTopicCount(String path) throws IOException {
+		BufferedReader br = new BufferedReader(new FileReader(path));
+		try {
+			String line = br.readLine();
+			if(line == null) {
+				throw new IOException(path + " is empty");
+			}
+			return line.split("\t").length;
+		} finally {
+			br.close();
+		}
+	}
+
+	/**
+	 * @return the topic of every token, from a z.txt written by CollapsedGibbsSampler
+	 */
+	private static int[] readTopics(String path, int numTokens, int T) throws IOException {
+		int[] z = new int[numTokens];
+		BufferedReader br = new BufferedReader(new FileReader(path));
+		try {
+			int i = 0;
+			String line = br.readLine();
+			while(line != null) {
+				if(i == numTokens) {
+					throw new IOException(path + " has more assignments than the " + numTokens + " tokens of the corpus");
+				}
+				z[i] = Integer.parseInt(line.trim());
+				if(z[i] < 0 || z[i] >= T) {
+					throw new IOException(path + " assigns topic " + z[i] + ", expected " + T + " topics");
+				}
+				i++;
+				line = br.readLine();
+			}
+			if(i != numTokens) {
+				throw new IOException(path + " has " + i + " assignments for " + numTokens + " tokens");
+			}
+		} finally {
+			br.close();
+		}
+		return z;
+	}
+
+	private static Map<String, Integer> toIds(List<String> idx) {
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		for(String word : idx) {
+			ids.put(word, ids.size());
+		}
+		return ids;
+	}
+
+	private static List<String> readLines(String path) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader br = new BufferedReader(new FileReader(path));
+		try {
+			String line = br.readLine();
+			while(line != null) {
+				lines.add(line);
+				line = br.readLine();
+			}
+		} finally {
+			br.close();
+		}
+		return lines;
+	}
+
+	private static void writeLines(PrintWriter printWriter, List<String> lines) {
+		for(String line : lines) {
+			printWriter.println(line);
+		}
+	}
+}
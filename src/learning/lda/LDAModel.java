@@ -1,12 +1,18 @@
 package learning.lda;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class LDAModel {
+	// written to the model directory by VerbFoldIn, and loaded with the model if present
+	public static final String FOLDED_IN_VERBS_FILE = "foldedInVerbs.txt";
+	
 	// All ids are zero-based
 	private String[] idToNoun;
 	private String[] idToVerb;
@@ -17,6 +23,8 @@ public class LDAModel {
 	private double[][] topicDistPerVerb;
 	// [i][j] = for topic i, Pr(noun j) T x N
 	private double[][] nounDistPerTopic;
+	// Pr(topic) of verbs that weren't trained on, estimated by VerbFoldIn
+	private final Map<String, double[]> foldedInVerbs = new ConcurrentHashMap<String, double[]>();
 	
 	private LDAModel() {};
 	
@@ -40,13 +48,71 @@ public class LDAModel {
 		return idToNoun[nid];
 	}
 	
+	/**
+	 * @return zero-based id of verb, or -1 if the model wasn't trained on it
+	 */
+	public int getVerbId(String verb) {
+		Integer vid = verbToId.get(verb);
+		return vid == null ? -1 : vid;
+	}
+	
+	/**
+	 * @return zero-based id of noun, or -1 if the model doesn't know it
+	 */
+	public int getNounId(String noun) {
+		Integer nid = nounToId.get(noun);
+		return nid == null ? -1 : nid;
+	}
+	
 	public double getPrTopicForVerb(int tid, String verb) {
 		if(!verbToId.containsKey(verb)) {
-			return 0;
+			double[] topicDist = foldedInVerbs.get(verb);
+			return topicDist == null ? 0 : topicDist[tid];
 		}
 		return topicDistPerVerb[verbToId.get(verb)][tid];
 	}
 	
+	/**
+	 * Make getPrTopicForVerb(tid, verb) answer for a verb the model wasn't trained on, see VerbFoldIn.
+	 * Verbs of the trained model keep their topic distribution.
+	 */
+	public void addFoldedInVerb(String verb, double[] topicDist) {
+		if(topicDist.length != getTopicCount()) {
+			throw new IllegalArgumentException("Expected " + getTopicCount() + " topic probabilities, got " + topicDist.length);
+		}
+		foldedInVerbs.put(verb, topicDist);
+	}
+	
+	/**
+	 * addFoldedInVerb for every row of a file written by VerbFoldIn: the verb followed by its topic
+	 * probabilities, tab separated.
+	 * @return the number of verbs read
+	 */
+	public int loadFoldedInVerbs(String path) throws IOException {
+		int topicCount = getTopicCount();
+		int numVerbs = 0;
+		BufferedReader reader = new BufferedReader(new FileReader(path));
+		try {
+			String line = reader.readLine();
+			while(line != null) {
+				String[] toks = line.split("\t");
+				if(toks.length != topicCount + 1) {
+					throw new IOException(path + " has a row of " + (toks.length - 1) + " topic probabilities, expected " + topicCount);
+				}
+				double[] topicDist = new double[topicCount];
+				for(int t = 0; t < topicCount; t++) {
+					topicDist[t] = Double.parseDouble(toks[t + 1]);
+				}
+				addFoldedInVerb(toks[0], topicDist);
+				numVerbs++;
+				line = reader.readLine();
+			}
+		} finally {
+			reader.close();
+		}
+		return numVerbs;
+	}
+	
 	public double getPrTopicForVerb(int tid, int vid) {
 		return topicDistPerVerb[vid][tid];
 	}
@@ -108,52 +174,63 @@ public class LDAModel {
 		
 		System.out.println("Verb and Noun mappings loaded.");
 		
-		// Count # topics
-		int topicCount = 0;
-		BufferedReader nounDistPerTopicReader = new BufferedReader(new FileReader(pathToBetas));
-		line = nounDistPerTopicReader.readLine();
-		while(line != null) {
-			topicCount++;
-			line = nounDistPerTopicReader.readLine();
-		}
-		nounDistPerTopicReader.close();
+		// Read nounDistPerTopic, one row per topic
+		model.nounDistPerTopic = readMatrix(pathToBetas, -1, nounCount);
+		int topicCount = model.nounDistPerTopic.length;
 
 		System.out.println("Number of topics = " + topicCount);
+		System.out.println("Loaded nounDistPerTopic");
 		
-		// Read nounDistPerTopic
-		model.nounDistPerTopic = new double[topicCount][nounCount];
-		nounDistPerTopicReader = new BufferedReader(new FileReader(pathToBetas));
-		line = nounDistPerTopicReader.readLine();
-		int row = 0;	
-		while(line != null) {
-			String[] toks = line.split("\t");
-			for(int col = 0; col < nounCount; col++) {
-				model.nounDistPerTopic[row][col] = Double.parseDouble(toks[col]);
+		// Read topicDistPerVerb
+		model.topicDistPerVerb = readMatrix(pathToThetas, verbCount, topicCount);
+		System.out.println("Loaded topicDistPerVerb");
+		
+		if(new File(baseDir + FOLDED_IN_VERBS_FILE).exists()) {
+			int numFoldedIn = model.loadFoldedInVerbs(baseDir + FOLDED_IN_VERBS_FILE);
+			System.out.println("Loaded " + numFoldedIn + " folded in verbs");
+		}
+		
+		return model;
+	}
+	
+	/**
+	 * Read a matrix written either as tab separated text or by BinarySnapshotWriter (*.bin).
+	 * @param rowCount - expected number of rows, or -1 to take as many as there are in the file
+	 */
+	private static double[][] readMatrix(String path, int rowCount, int colCount) throws IOException {
+		if(BinarySnapshotWriter.isBinary(path)) {
+			double[][] matrix = BinarySnapshotWriter.read(path);
+			if((rowCount >= 0 && matrix.length != rowCount) || (matrix.length > 0 && matrix[0].length != colCount)) {
+				throw new IOException(path + " has the wrong dimensions, expected " + rowCount + " x " + colCount);
 			}
-			row++;
-			line = nounDistPerTopicReader.readLine();
+			return matrix;
 		}
-		nounDistPerTopicReader.close();
 		
-		System.out.println("Loaded nounDistPerTopic");
+		if(rowCount < 0) {
+			rowCount = 0;
+			BufferedReader reader = new BufferedReader(new FileReader(path));
+			String line = reader.readLine();
+			while(line != null) {
+				rowCount++;
+				line = reader.readLine();
+			}
+			reader.close();
+		}
 		
-		// Read topicDistPerVerb
-		model.topicDistPerVerb = new double[verbCount][topicCount];
-		BufferedReader topicDistPerVerbReader = new BufferedReader(new FileReader(pathToThetas));
-		line = topicDistPerVerbReader.readLine();
-		row = 0;
+		double[][] matrix = new double[rowCount][colCount];
+		BufferedReader reader = new BufferedReader(new FileReader(path));
+		String line = reader.readLine();
+		int row = 0;
 		while(line != null) {
 			String[] toks = line.split("\t");
-			for(int col = 0; col < topicCount; col++) {
-				model.topicDistPerVerb[row][col] = Double.parseDouble(toks[col]);
+			for(int col = 0; col < colCount; col++) {
+				matrix[row][col] = Double.parseDouble(toks[col]);
 			}
 			row++;
-			line = topicDistPerVerbReader.readLine();
+			line = reader.readLine();
 		}
-		topicDistPerVerbReader.close();
-		System.out.println("Loaded topicDistPerVerb");
-		
-		return model;
+		reader.close();
+		return matrix;
 	}
 	
 	/**
@@ -162,6 +239,7 @@ public class LDAModel {
 	 * and two more files - the trained models generated by MCMC.R:
 	 * 1. topicDistPerVerb.txt
 	 * 2. nounDistPerTopic.txt
+	 * and optionally the verbs folded in by VerbFoldIn, see FOLDED_IN_VERBS_FILE
 	 */
 	public static LDAModel loadModel(String baseDir) throws Exception {
 		return loadModel(baseDir, baseDir + "topicDistPerVerb.txt", baseDir + "nounDistPerTopic.txt");
@@ -25,8 +25,9 @@ import util.StatUtil.ClassificationPerformance;
  */
 public class LDAModelPicker {
 
-	private static final Pattern THETA_MODEL_PATTERN = Pattern.compile("thetaAtIter(\\d*).txt");
-	private static final Pattern BETA_MODEL_PATTERN = Pattern.compile("betaAtIter(\\d*).txt");
+	// text or binary snapshots, see SnapshotWriter
+	private static final Pattern THETA_MODEL_PATTERN = Pattern.compile("thetaAtIter(\\d*)\\.(txt|bin)");
+	private static final Pattern BETA_MODEL_PATTERN = Pattern.compile("betaAtIter(\\d*)\\.(txt|bin)");
 	
 	public static void main(String[] args) throws Exception {
 		if(args.length != 3) {
@@ -11,15 +11,24 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.commons.math3.distribution.GammaDistribution;
 
+import util.ParallelRange;
 import util.StatUtil;
+import util.XoroshiroRandom;
 
 /**
  * Driver for svi on the entire training set -> all verbs
  * Accepts the full training set across all verbs - 
+ * 
+ * Every update of lambda is from a minibatch of B distinct verbs sampled at random (Hoffman et al. 2013,
+ * section 3.3), which averages the noise of B documents into one step. The E-steps of the minibatch are
+ * independent given lambda, so they run in parallel on a ForkJoinPool, against one E[log beta] loaded for all
+ * the nouns of the minibatch. Their statistics are summed in minibatch order, so a run only depends on the
+ * seed and B, not on the number of threads. With B = 1 this is plain one-document SVI.
  */
 public class LargeScaleStochasticVariationalInference {
 	
@@ -28,11 +37,23 @@ public class LargeScaleStochasticVariationalInference {
 	
 	// Using the notations from Figure 6 of http://arxiv.org/pdf/1206.7051v3.pdf
 	public static void main(String[] args) throws Exception {
+		if(args.length < 2 || args.length > 5) {
+			System.err.println("Usage: <train file> <output dir> [seed] [minibatch size, default 1] " +
+					"[threads, default = #processors]");
+			return;
+		}
 		String trainFile = args[0];
 		String outDir = args[1];
 		if(!outDir.endsWith("/")) {
 			outDir += "/";
 		}
+		// optional seed, so that runs can be reproduced
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : XoroshiroRandom.newSeed();
+		// documents per update of lambda, whose E-steps run in parallel
+		final int BATCH_SIZE = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+		int numThreads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+		System.out.println("random seed = " + seed);
+		XoroshiroRandom rng = new XoroshiroRandom(seed);
 		
 		LDACorpus corpus = ingestData(trainFile);
 		writeModelMapping(outDir, corpus);
@@ -76,152 +97,112 @@ public class LargeScaleStochasticVariationalInference {
 		final double GAMMA_CONVERGENCE = 0.01 * NUM_TOPIC;
 		final int MAX_CONVERGENCE_ITER = 100;
 		
+		if(BATCH_SIZE < 1 || BATCH_SIZE > D || numThreads < 1) {
+			System.err.println("The minibatch size must be in [1, " + D + "] and the threads at least 1");
+			return;
+		}
+		
 		//lambda is param for distribution of objects/noun | topic
-		double[][] lambda = new double[NUM_TOPIC][N];
+		// kept lazily, so that the M-step only touches the nouns of the document
+		LazyLambda lambda = new LazyLambda(NUM_TOPIC, N);
 
-		GammaDistribution lambdaSampler = new GammaDistribution(100.0, 0.01);
+		GammaDistribution lambdaSampler = new GammaDistribution(rng, 100.0, 0.01,
+				GammaDistribution.DEFAULT_INVERSE_ABSOLUTE_ACCURACY);
 		
 		//Initialize lambda(t=0) randomly
 		for(int k = 0; k < NUM_TOPIC; k++) {
 			for(int n = 0; n < N; n++) {
-				lambda[k][n] = lambdaSampler.sample();
+				lambda.set(k, n, lambdaSampler.sample());
 			}
 		}
 		
 		//maxNounPerVerb = 3,267,225
 		
 		// gamma_d_k is param for distribution of topic | document
-		double[][] gamma = new double[numDistinctVerbs][NUM_TOPIC];
+		final double[][] gamma = new double[numDistinctVerbs][NUM_TOPIC];
 		
 		// initialize all the matrices here to save memory
-		double[][] digamma_lambda = new double[NUM_TOPIC][N];
-		double[] sum_digamma_lambda = new double[NUM_TOPIC];
-		double[] digamma_gamma = new double[NUM_TOPIC];
-		double[] tempGammaD = new double[NUM_TOPIC];
-		double[] pows = new double[NUM_TOPIC];
+		// one E-step per document of the minibatch, they run in parallel
+		final DocumentEStep[] eSteps = new DocumentEStep[BATCH_SIZE];
+		for(int b = 0; b < BATCH_SIZE; b++) {
+			eSteps[b] = new DocumentEStep(NUM_TOPIC, ALPHA, GAMMA_CONVERGENCE, MAX_CONVERGENCE_ITER);
+		}
+		// the sum of the minibatch's statistics, over the union of its nouns
+		TopicNounStatistics lambdaPrime = new TopicNounStatistics(NUM_TOPIC, N);
+		final ExpectedLogBeta expectedLogBeta = new ExpectedLogBeta(lambda);
+		final int[] batch = new int[BATCH_SIZE];
+		boolean[] inBatch = new boolean[numDistinctVerbs];
+		int[] docRows = new int[0];
+		
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
 		
-		// keep sampling documents
+		// keep sampling minibatches of documents
 		for(int iter = 0; iter < NUM_ROUNDS; iter++) {
 			// page 1320 of http://jmlr.org/papers/volume14/hoffman13a/hoffman13a.pdf
 			double stepSize = Math.pow((iter + 1), -0.7);
 			
-			// Get a document id from the dataset
-			int compactVerbId = (int) (Math.random() * numDistinctVerbs);
-			int d = compactVerbId;
-			System.out.println("Starting sample " + iter + " verb = " + d + " - " + idToVerb[d]);
-			
-			// init gamma
-			// the paper says set to 1, but the code i found online sampled from gamma dist
-			for(int k = 0; k < NUM_TOPIC; k++) {
-				gamma[d][k] = lambdaSampler.sample();
-			}
-			
-			// precompute digamma of lambdas
-			clear(digamma_lambda);
-			Arrays.fill(sum_digamma_lambda, 0);
-			for(int k = 0; k < NUM_TOPIC; k++) {
-				for(int n = 0; n < N; n++) {
-					digamma_lambda[k][n] = digamma0(lambda[k][n]);
-					sum_digamma_lambda[k] += lambda[k][n];
-				}
-				sum_digamma_lambda[k] = digamma0(sum_digamma_lambda[k]);
-			}
-		
-			int numPhiGammaIter = 0;
-
-			// calculate lambda_prime -- need to do it on the fly if we don't want to save phi's
-			double[][] lambda_prime = new double[NUM_TOPIC][N];
-			
-			// compute phi and gamma until convergence
-			while(true) {
-				clear(lambda_prime);
+			// Get distinct document ids from the dataset, so that no two E-steps share a gamma_d
+			for(int b = 0; b < BATCH_SIZE; b++) {
+				int d;
+				do {
+					d = rng.nextInt(numDistinctVerbs);
+				} while(inBatch[d]);
+				inBatch[d] = true;
+				batch[b] = d;
 				
-				double curTime = System.currentTimeMillis();
-				// precompute the digamma of gammas
-				//digamma_gamma[k] = digamma(gamma_d_k)
-				Arrays.fill(digamma_gamma, 0);
-				// digamma(sum_j=1->K {gamma_d_j})
-				double sum_digamma = 0.0;
+				// init gamma
+				// the paper says set to 1, but the code i found online sampled from gamma dist
 				for(int k = 0; k < NUM_TOPIC; k++) {
-					digamma_gamma[k] = digamma0(gamma[d][k]);
-					sum_digamma += gamma[d][k];
+					gamma[d][k] = lambdaSampler.sample();
 				}
-				sum_digamma = digamma0(sum_digamma);
+			}
 			
-				// break the gamma_d = alpha + sum {phi_d_n}
-				Arrays.fill(tempGammaD, ALPHA);
-				for(int i = 0; i < compressedDataset[d].size(); i++) {
-					Pair<Integer, Integer> nFreq = compressedDataset[d].get(i);
-					int noun = nFreq.getKey();
-					int freq = nFreq.getValue();
-					
-					// the E_log_theta + E_log_beta's, we can't just compute e ^ that for the phi's
-					Arrays.fill(pows, 0);
-					// compute and make sure sum {phi_dn} = 1
-					for(int k = 0; k < NUM_TOPIC; k++) {
-						double E_log_theta = digamma_gamma[k] - sum_digamma;
-						double E_log_beta = digamma_lambda[k][noun] - sum_digamma_lambda[k];
-						pows[k] = Math.exp(E_log_theta + E_log_beta);
-						// System.out.println("Stub");
-					}
-					
-					double normalizer = 0.0;
-					for(double p : pows) {
-						normalizer += p;
-					}
-					
-					// update gamma_d
-					for(int k = 0; k < NUM_TOPIC; k++) {
-						// Can collapse identical words in the document together, since the math form is exactly the same
-						double phi_i_k = pows[k] / normalizer;
-						tempGammaD[k] += freq * phi_i_k;
-						
-						// Assume that this is the converging iteration
-						// if not converging iteration, lambda_prime gets reset to 0 anyways
-						lambda_prime[k][noun] +=  freq * phi_i_k;
-					}
-				}
-
-				// check if phi_dn and gamma_d converge
-				double eucDistGammaD = Math.sqrt(sqDiff(gamma[d], tempGammaD));
-				//double eucDistPhi = Math.sqrt(sqDiff(phi, tempPhi));
-
-				//if(numPhiGammaIter % 100 == 0) {
-					System.out.printf("Num Phi Gamma Iter = %d, eucDistGammaD = %.6f, timeElapsed(s) = %.6f\n", 
-							numPhiGammaIter, eucDistGammaD, (System.currentTimeMillis() - curTime) / 1000.0);
-				//}
-					
-				if(numPhiGammaIter != 0) {
-					if(eucDistGammaD < GAMMA_CONVERGENCE || numPhiGammaIter > MAX_CONVERGENCE_ITER) {
-						break;
-					}
+			// number the nouns of the minibatch, and precompute E[log beta] for those only, they are all the
+			// E-steps read
+			lambdaPrime.clear();
+			for(int b = 0; b < BATCH_SIZE; b++) {
+				List<Pair<Integer, Integer>> document = compressedDataset[batch[b]];
+				if(docRows.length < document.size()) {
+					docRows = new int[document.size()];
 				}
-				
-				for(int i = 0; i < tempGammaD.length; i++) {
-					gamma[d][i] = tempGammaD[i];
+				for(int i = 0; i < document.size(); i++) {
+					docRows[i] = lambdaPrime.touch(document.get(i).getKey());
 				}
-				
-				numPhiGammaIter++;
-			}// got phi and gamma
+				eSteps[b].setDocument(document, docRows);
+			}
+			expectedLogBeta.load(lambdaPrime.getNouns(), lambdaPrime.size(), pool);
 			
-			// lambda_t = (1-p_t) * prev lambda + stuff ---- + stuff later
-			for(int k = 0; k < NUM_TOPIC; k++) {
-				for(int n = 0; n < N; n++) {
-					lambda[k][n] *= 1.0 - stepSize;
-				}
-				
-				// lambda_prime will already have sum {phi w} term from the very last iteration - when converged
-				
-				for(int n = 0; n < N; n++) {
-					lambda_prime[k][n] *= D;
-					lambda_prime[k][n] += ETA;
-				}
-				
-				// merge lambda_prime
-				for(int n = 0; n < N; n++) {
-					lambda[k][n] += stepSize * lambda_prime[k][n];
+			// compute phi and gamma until convergence, for every document of the minibatch
+			double curTime = System.currentTimeMillis();
+			new ParallelRange() {
+				@Override
+				protected void run(int from, int to) {
+					for(int b = from; b < to; b++) {
+						eSteps[b].run(expectedLogBeta, gamma[batch[b]]);
+					}
 				}
-			} // done getting lambda(t)		
+			}.invoke(pool, 0, BATCH_SIZE, 1);
+			
+			for(int b = 0; b < BATCH_SIZE; b++) {
+				int d = batch[b];
+				inBatch[d] = false;
+				System.out.printf("Sample %d verb = %d - %s, Num Phi Gamma Iter = %d, eucDistGammaD = %.6f\n",
+						iter, d, idToVerb[d], eSteps[b].getIterationCount(), eSteps[b].getDistance());
+			}
+			System.out.printf("Minibatch %d, timeElapsed(s) = %.6f\n", iter, (System.currentTimeMillis() - curTime) / 1000.0);
+			
+			// sum the statistics in minibatch order, so that the result does not depend on the threads
+			for(int b = 0; b < BATCH_SIZE; b++) {
+				eSteps[b].addStatistics(lambdaPrime);
+			}
+			
+			// lambda_t = (1-p_t) * prev lambda + p_t * (D / B * lambda_prime + ETA)
+			// the decay and ETA apply to every cell alike, and are applied to all of them at once
+			lambda.decay(stepSize, ETA);
+			
+			// lambda_prime is zero outside the nouns of the minibatch
+			lambda.addColumns(lambdaPrime, stepSize * D / BATCH_SIZE, pool);
+			// done getting lambda(t)		
 			
 			// store params
 
@@ -234,7 +215,7 @@ public class LargeScaleStochasticVariationalInference {
 			
 		    for (int t = 0; t < NUM_TOPIC; t++) {
 		      for (int n = 0; n < N; n++) {
-		        printWriter.print(lambda[t][n]);
+		        printWriter.print(lambda.get(t, n));
 		        if (n < N-1) {
 		        	printWriter.print("\t");
 		        } else {
@@ -244,7 +225,8 @@ public class LargeScaleStochasticVariationalInference {
 		    }
 		    printWriter.close();
 			} // end logging
-		} // for each data point = document    
+		} // for each minibatch of documents
+		pool.shutdown();
 	}//end main
 	
 	static double sqDiff(double[] a1, double[] a2) {
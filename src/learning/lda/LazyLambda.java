@@ -0,0 +1,141 @@
+package learning.lda;
+
+import java.util.concurrent.ForkJoinPool;
+
+import util.ParallelRange;
+
+/**
+ * The K x N topic-noun parameters lambda of stochastic variational inference, updated lazily.
+ *
+ * The M-step for a document d is
+ *   lambda = (1 - stepSize) * lambda + stepSize * (D * lambda_prime + eta)
+ * where lambda_prime is zero outside the nouns of d. The decay and the eta term are the same for every cell,
+ * so lambda is kept as scale * stored + offset, with scale and offset shared by all cells: decay() updates
+ * just the two of them, and only the cells of d's nouns are touched by add(). An M-step then costs
+ * O(K * nouns of d) instead of O(K * N).
+ *
+ * The row sums of lambda are maintained along with the cells. The scale shrinks with every decay, so once it
+ * gets too small, it is folded back into the cells at a cost of O(K * N).
+ *
+ * getVersion() changes whenever lambda does, for caches of quantities derived from it, see ExpectedLogBeta.
+ */
+public class LazyLambda {
+	// smallest scale before the cells are renormalized, far enough from underflow for stored / scale
+	private static final double MIN_SCALE = 1e-100;
+
+	private final int K;
+	private final int N;
+	private final double[][] stored;
+	private final double[] storedRowSum;
+	private double scale = 1.0;
+	private double offset = 0.0;
+	private long version = 0;
+
+	public LazyLambda(int K, int N) {
+		this.K = K;
+		this.N = N;
+		stored = new double[K][N];
+		storedRowSum = new double[K];
+	}
+
+	public int getTopicCount() {
+		return K;
+	}
+
+	public int getNounCount() {
+		return N;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public double get(int k, int n) {
+		return scale * stored[k][n] + offset;
+	}
+
+	public void set(int k, int n, double value) {
+		add(k, n, value - get(k, n));
+	}
+
+	/**
+	 * lambda[k][n] += delta
+	 */
+	public void add(int k, int n, double delta) {
+		double storedDelta = delta / scale;
+		stored[k][n] += storedDelta;
+		storedRowSum[k] += storedDelta;
+		version++;
+	}
+
+	/**
+	 * lambda[k][n] += weight * lambdaPrime[k][n] for the touched nouns n of lambdaPrime, spreading the topics
+	 * over the threads of pool, or on this thread if pool is null.
+	 */
+	public void addColumns(final TopicNounStatistics lambdaPrime, final double weight, ForkJoinPool pool) {
+		final int[] nouns = lambdaPrime.getNouns();
+		final int numNouns = lambdaPrime.size();
+		new ParallelRange() {
+			@Override
+			protected void run(int from, int to) {
+				// every task owns the rows of its topics
+				for(int k = from; k < to; k++) {
+					double[] row = stored[k];
+					double rowSum = storedRowSum[k];
+					for(int j = 0; j < numNouns; j++) {
+						double storedDelta = weight * lambdaPrime.getSlab(j)[k] / scale;
+						row[nouns[j]] += storedDelta;
+						rowSum += storedDelta;
+					}
+					storedRowSum[k] = rowSum;
+				}
+			}
+		}.invoke(pool, 0, K, 1);
+		version++;
+	}
+
+	/**
+	 * sum over n of lambda[k][n]
+	 */
+	public double getRowSum(int k) {
+		return scale * storedRowSum[k] + N * offset;
+	}
+
+	/**
+	 * Row k of lambda, in out.
+	 */
+	public double[] getRow(int k, double[] out) {
+		double[] row = stored[k];
+		for(int n = 0; n < N; n++) {
+			out[n] = scale * row[n] + offset;
+		}
+		return out;
+	}
+
+	/**
+	 * lambda = (1 - stepSize) * lambda + stepSize * eta, in O(1)
+	 */
+	public void decay(double stepSize, double eta) {
+		scale *= 1.0 - stepSize;
+		offset = (1.0 - stepSize) * offset + stepSize * eta;
+		version++;
+		if(scale < MIN_SCALE) {
+			renormalize();
+		}
+	}
+
+	// fold scale and offset into the cells
+	private void renormalize() {
+		for(int k = 0; k < K; k++) {
+			double[] row = stored[k];
+			double sum = 0.0;
+			for(int n = 0; n < N; n++) {
+				row[n] = scale * row[n] + offset;
+				sum += row[n];
+			}
+			storedRowSum[k] = sum;
+		}
+		scale = 1.0;
+		offset = 0.0;
+	}
+}
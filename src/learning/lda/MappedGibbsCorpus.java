@@ -0,0 +1,136 @@
+package learning.lda;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The (v,n) tokens of a binary token file, memory mapped instead of loaded onto the heap, so that the
+ * corpus size is bounded by disk rather than -Xmx. The OS pages the file in and out as the sweeps go by.
+ *
+ * The binary file is a headerless sequence of (int verbId, int nounId) pairs, zero-based and big-endian,
+ * so the number of tokens is simply the file length / 8. Use writeBinary to convert a vnIdx text file.
+ * Nothing in the file says where it came from, so it is only trusted if it is complete, which writeBinary
+ * ensures by renaming it into place at the end, and newer than its text file, see openOrConvert.
+ */
+public class MappedGibbsCorpus extends GibbsCorpus {
+	static final int BYTES_PER_TOKEN = 8;
+	// 2^27 tokens = 1GB per mapping, a single MappedByteBuffer can't go beyond 2GB
+	private static final int SEGMENT_SHIFT = 27;
+	private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+	private final MappedByteBuffer[] segments;
+	private final int size;
+
+	private MappedGibbsCorpus(MappedByteBuffer[] segments, int size) {
+		this.segments = segments;
+		this.size = size;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public int getVerb(int i) {
+		return segments[i >>> SEGMENT_SHIFT].getInt((i & SEGMENT_MASK) * BYTES_PER_TOKEN);
+	}
+
+	@Override
+	public int getNoun(int i) {
+		return segments[i >>> SEGMENT_SHIFT].getInt((i & SEGMENT_MASK) * BYTES_PER_TOKEN + 4);
+	}
+
+	public static MappedGibbsCorpus open(String binaryPath) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(binaryPath, "r");
+		try {
+			long length = file.length();
+			if(length % BYTES_PER_TOKEN != 0) {
+				throw new IOException(binaryPath + " is not a token file, its length " + length + " is not a multiple of " + BYTES_PER_TOKEN);
+			}
+			long numTokens = length / BYTES_PER_TOKEN;
+			if(numTokens > Integer.MAX_VALUE) {
+				throw new IOException(binaryPath + " has more than " + Integer.MAX_VALUE + " tokens");
+			}
+			MappedByteBuffer[] segments = mapSegments(file.getChannel(), MapMode.READ_ONLY, length,
+					(long) BYTES_PER_TOKEN << SEGMENT_SHIFT);
+			return new MappedGibbsCorpus(segments, (int) numTokens);
+		} finally {
+			// the mappings stay valid after the channel is closed
+			file.close();
+		}
+	}
+
+	/**
+	 * Stream a vnIdx text file (rows of one-based "verbId,nounId") into the binary token format.
+	 * It is written to a temporary file which is then renamed to binaryPath, so a failed conversion leaves
+	 * no partial token file behind.
+	 */
+	public static void writeBinary(String vnIdxPath, String binaryPath) throws IOException {
+		File tmp = new File(binaryPath + ".tmp");
+		BufferedReader in = new BufferedReader(new FileReader(vnIdxPath));
+		FileOutputStream file = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 20));
+		try {
+			String line = in.readLine();
+			long lineCount = 0;
+			while(line != null) {
+				int comma = line.indexOf(',');
+				out.writeInt(Integer.parseInt(line.substring(0, comma)) - 1);
+				out.writeInt(Integer.parseInt(line.substring(comma + 1).trim()) - 1);
+				line = in.readLine();
+				lineCount++;
+				if(lineCount % 1000000 == 0) {
+					System.out.println("converted " + lineCount + " tuples from " + vnIdxPath);
+				}
+			}
+			out.flush();
+			file.getFD().sync();
+		} finally {
+			in.close();
+			out.close();
+		}
+		Files.move(tmp.toPath(), new File(binaryPath).toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Open binaryPath, converting vnIdxPath into it first if it doesn't exist yet, or if vnIdxPath has been
+	 * modified since it was converted.
+	 */
+	public static MappedGibbsCorpus openOrConvert(String vnIdxPath, String binaryPath) throws IOException {
+		File binary = new File(binaryPath);
+		if(!binary.exists()) {
+			System.out.println("writing binary token file " + binaryPath);
+			writeBinary(vnIdxPath, binaryPath);
+		} else if(new File(vnIdxPath).lastModified() > binary.lastModified()) {
+			System.out.println(vnIdxPath + " is newer than " + binaryPath + ", converting it again");
+			writeBinary(vnIdxPath, binaryPath);
+		}
+		return open(binaryPath);
+	}
+
+	/**
+	 * Map [0, length) of the channel as consecutive segments of segmentBytes each (the last one may be shorter).
+	 */
+	static MappedByteBuffer[] mapSegments(FileChannel channel, MapMode mode, long length, long segmentBytes) throws IOException {
+		int numSegments = (int) ((length + segmentBytes - 1) / segmentBytes);
+		MappedByteBuffer[] segments = new MappedByteBuffer[numSegments];
+		for(int s = 0; s < numSegments; s++) {
+			long start = s * segmentBytes;
+			segments[s] = channel.map(mode, start, Math.min(segmentBytes, length - start));
+		}
+		return segments;
+	}
+}
@@ -0,0 +1,58 @@
+package learning.lda;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Topic assignments kept in a memory mapped file, 2 bytes per token, so they don't count against the heap.
+ * The file is (re)sized to exactly the number of tokens, and its previous content is kept.
+ */
+public class MappedTopicAssignments extends TopicAssignments {
+	private static final int BYTES_PER_TOKEN = 2;
+	// 2^29 tokens = 1GB per mapping
+	private static final int SEGMENT_SHIFT = 29;
+	private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+	private final MappedByteBuffer[] segments;
+	private final int size;
+
+	public MappedTopicAssignments(String path, int size, int numTopics) throws IOException {
+		checkTopicCount(numTopics);
+		this.size = size;
+		long length = (long) size * BYTES_PER_TOKEN;
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		try {
+			file.setLength(length);
+			segments = MappedGibbsCorpus.mapSegments(file.getChannel(), MapMode.READ_WRITE, length,
+					(long) BYTES_PER_TOKEN << SEGMENT_SHIFT);
+		} finally {
+			file.close();
+		}
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public int get(int i) {
+		return segments[i >>> SEGMENT_SHIFT].getChar((i & SEGMENT_MASK) * BYTES_PER_TOKEN);
+	}
+
+	@Override
+	public void set(int i, int t) {
+		segments[i >>> SEGMENT_SHIFT].putChar((i & SEGMENT_MASK) * BYTES_PER_TOKEN, (char) t);
+	}
+
+	/**
+	 * Write the dirty pages back to the file.
+	 */
+	public void flush() {
+		for(MappedByteBuffer segment : segments) {
+			segment.force();
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package learning.lda;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import util.AliasTable;
+
+/**
+ * The proposals of MetropolisHastingsTopicSampler, built from a snapshot of the counts:
+ *   verb proposal: q(t) ~ CVT[v][t] + alpha
+ *   noun proposal: q(t) ~ (CWT[n][t] + gamma) / (numNounsInTopic[t] + N * gamma)
+ * Each is a mixture of a sparse part over the row's nonzero topics, sampled through an alias table per row,
+ * and a dense smoothing part that is shared by all rows.
+ *
+ * Once built, the proposals are only read, so the samplers of several workers can share one instance, see
+ * BlockParallelGibbsSampler. The rows are split into numParts parts that can be built on different threads:
+ * buildTopics() first, then buildRows(p) for every part p.
+ */
+public class MetropolisHastingsProposals {
+	private final GibbsCounts counts;
+	private final int T;
+	private final double alpha;
+	private final double gamma;
+	private final double nGamma;
+
+	private final ProposalRow[] nounRows;
+	private final ProposalRow[] verbRows;
+
+	// numNounsInTopic[t] + N * gamma at the time the proposals were built
+	private final double[] staleTopicDenom;
+	// noun proposal smoothing part: gamma / staleTopicDenom[t]
+	private final double[] smoothingWeights;
+	private final AliasTable smoothingAlias;
+	private double smoothingMass;
+
+	// scratch space for building the sparse tables, one per part
+	private final RowScratch[] scratch;
+
+	public MetropolisHastingsProposals(GibbsCounts counts, int numParts) {
+		this.counts = counts;
+		T = counts.getTopicCount();
+		alpha = counts.alpha;
+		gamma = counts.gamma;
+		nGamma = counts.getNounCount() * gamma;
+
+		nounRows = new ProposalRow[counts.getNounCount()];
+		for(int n = 0; n < nounRows.length; n++) {
+			nounRows[n] = new ProposalRow();
+		}
+		verbRows = new ProposalRow[counts.getVerbCount()];
+		for(int v = 0; v < verbRows.length; v++) {
+			verbRows[v] = new ProposalRow();
+		}
+		staleTopicDenom = new double[T];
+		smoothingWeights = new double[T];
+		smoothingAlias = new AliasTable();
+		scratch = new RowScratch[numParts];
+		for(int p = 0; p < numParts; p++) {
+			scratch[p] = new RowScratch(T);
+		}
+	}
+
+	public int getPartCount() {
+		return scratch.length;
+	}
+
+	/**
+	 * Rebuild all the proposals from the current counts, on this thread.
+	 */
+	public void build() {
+		buildTopics();
+		for(int p = 0; p < scratch.length; p++) {
+			buildRows(p);
+		}
+	}
+
+	/**
+	 * Rebuild the smoothing part from the current numNounsInTopic. Has to come before buildRows, which
+	 * divide by the same topic denominators.
+	 */
+	public void buildTopics() {
+		int[] numNounsInTopic = counts.numNounsInTopic;
+		smoothingMass = 0.0;
+		for(int t = 0; t < T; t++) {
+			staleTopicDenom[t] = numNounsInTopic[t] + nGamma;
+			smoothingWeights[t] = gamma / staleTopicDenom[t];
+			smoothingMass += smoothingWeights[t];
+		}
+		smoothingAlias.build(smoothingWeights, T);
+	}
+
+	/**
+	 * Rebuild the noun and verb rows of part p from the current counts. Different parts may be built
+	 * concurrently, as long as nobody writes the counts meanwhile.
+	 */
+	public void buildRows(int p) {
+		int numParts = scratch.length;
+		RowScratch rowScratch = scratch[p];
+		int nounFrom = (int) ((long) nounRows.length * p / numParts);
+		int nounTo = (int) ((long) nounRows.length * (p + 1) / numParts);
+		for(int n = nounFrom; n < nounTo; n++) {
+			nounRows[n].build(counts.CWT, n, staleTopicDenom, rowScratch);
+		}
+		int verbFrom = (int) ((long) verbRows.length * p / numParts);
+		int verbTo = (int) ((long) verbRows.length * (p + 1) / numParts);
+		for(int v = verbFrom; v < verbTo; v++) {
+			verbRows[v].build(counts.CVT, v, null, rowScratch);
+		}
+	}
+
+	public int proposeFromVerb(int v, Random r) {
+		ProposalRow row = verbRows[v];
+		if(r.nextDouble() * (row.mass + T * alpha) < row.mass) {
+			return row.sample(r);
+		}
+		return r.nextInt(T);
+	}
+
+	public int proposeFromNoun(int n, Random r) {
+		ProposalRow row = nounRows[n];
+		if(r.nextDouble() * (row.mass + smoothingMass) < row.mass) {
+			return row.sample(r);
+		}
+		return smoothingAlias.sample(r);
+	}
+
+	// unnormalized verb proposal, the normalizer cancels in the acceptance ratio
+	public double verbProposal(int v, int t) {
+		return verbRows[v].staleCount(t) + alpha;
+	}
+
+	// unnormalized noun proposal
+	public double nounProposal(int n, int t) {
+		return (nounRows[n].staleCount(t) + gamma) / staleTopicDenom[t];
+	}
+
+	private static class RowScratch {
+		final int[] rowTopics;
+		final int[] rowCounts;
+		final long[] sortScratch;
+		final double[] rowWeights;
+
+		RowScratch(int T) {
+			rowTopics = new int[T];
+			rowCounts = new int[T];
+			sortScratch = new long[T];
+			rowWeights = new double[T];
+		}
+
+		/**
+		 * Sort rowTopics[0..size) and rowCounts along with them by topic, unless they already are.
+		 */
+		void sortRowByTopic(int size) {
+			boolean sorted = true;
+			for(int i = 1; i < size && sorted; i++) {
+				sorted = rowTopics[i - 1] < rowTopics[i];
+			}
+			if(sorted) {
+				return;
+			}
+			for(int i = 0; i < size; i++) {
+				sortScratch[i] = ((long) rowTopics[i] << 32) | rowCounts[i];
+			}
+			Arrays.sort(sortScratch, 0, size);
+			for(int i = 0; i < size; i++) {
+				rowTopics[i] = (int) (sortScratch[i] >>> 32);
+				rowCounts[i] = (int) sortScratch[i];
+			}
+		}
+	}
+
+	/**
+	 * The sparse part of a proposal for one row of CWT or CVT: the nonzero topics of the row in
+	 * increasing order, their counts at build time, and an alias table over their weights.
+	 */
+	private static class ProposalRow {
+		int[] topics = new int[0];
+		int[] staleCounts = new int[0];
+		int size;
+		double mass;
+		AliasTable alias = new AliasTable();
+
+		/**
+		 * @param topicDenom - what each count gets divided by, per topic, or null for nothing
+		 */
+		void build(CountMatrix matrix, int rowId, double[] topicDenom, RowScratch scratch) {
+			size = matrix.getNonzero(rowId, scratch.rowTopics, scratch.rowCounts);
+			scratch.sortRowByTopic(size);
+			if(topics.length < size) {
+				topics = new int[size];
+				staleCounts = new int[size];
+			}
+
+			double[] rowWeights = scratch.rowWeights;
+			mass = 0.0;
+			for(int i = 0; i < size; i++) {
+				int t = scratch.rowTopics[i];
+				int count = scratch.rowCounts[i];
+				topics[i] = t;
+				staleCounts[i] = count;
+				rowWeights[i] = topicDenom != null ? count / topicDenom[t] : count;
+				mass += rowWeights[i];
+			}
+			if(size > 0) {
+				alias.build(rowWeights, size);
+			}
+		}
+
+		int sample(Random r) {
+			return topics[alias.sample(r)];
+		}
+
+		int staleCount(int t) {
+			int i = Arrays.binarySearch(topics, 0, size, t);
+			return i < 0 ? 0 : staleCounts[i];
+		}
+	}
+}
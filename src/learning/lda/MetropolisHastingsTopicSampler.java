@@ -0,0 +1,117 @@
+package learning.lda;
+
+import java.util.Random;
+
+/**
+ * LightLDA-style sampler (Yuan et al., WWW 2015): instead of evaluating the conditional
+ *   p(t) ~ (CVT[v][t] + alpha) * (CWT[n][t] + gamma) / (numNounsInTopic[t] + N * gamma)
+ * for every topic, each token takes a few Metropolis-Hastings steps that alternate between
+ *   verb proposal: q(t) ~ CVT[v][t] + alpha
+ *   noun proposal: q(t) ~ (CWT[n][t] + gamma) / (numNounsInTopic[t] + N * gamma)
+ * Both proposals are built from a snapshot of the counts taken at the start of the sweep, and are
+ * sampled through alias tables. Each is a mixture of a sparse part over the row's nonzero topics and
+ * a dense smoothing part that is shared by all rows, so the tables only take O(nonzero counts) memory,
+ * see MetropolisHastingsProposals. Samplers of workers that share the counts can share the proposals too.
+ * The acceptance ratio evaluates the proposals against the same snapshot, so the stale proposals
+ * leave the stationary distribution untouched.
+ *
+ * The cost per token is O(NUM_MH_STEPS * log(nonzero topics of the row)), the log coming from
+ * looking up the snapshot count of a topic, independent of T, plus looking up the current counts of the
+ * proposed topics, which is O(1) on DenseCountMatrix rows and usually short on HybridCountMatrix rows,
+ * since the proposals favour the topics with large counts, which those rows list first.
+ */
+public class MetropolisHastingsTopicSampler implements TopicSampler {
+	// number of proposals per token, alternating verb, noun, verb, ...
+	private static final int NUM_MH_STEPS = 2;
+
+	private final GibbsCounts counts;
+	private final Random r;
+	private final double alpha;
+	private final double gamma;
+	private final double nGamma;
+
+	private final MetropolisHastingsProposals proposals;
+	// whether startSweep rebuilds the proposals, or whoever shares them does
+	private final boolean ownsProposals;
+
+	public MetropolisHastingsTopicSampler(GibbsCounts counts, Random r) {
+		this(counts, r, new MetropolisHastingsProposals(counts, 1), true);
+		proposals.build();
+	}
+
+	/**
+	 * A sampler that draws from proposals shared with other samplers. Its startSweep leaves them alone, so
+	 * the owner of the proposals has to rebuild them before every sweep.
+	 */
+	public MetropolisHastingsTopicSampler(GibbsCounts counts, Random r, MetropolisHastingsProposals proposals) {
+		this(counts, r, proposals, false);
+	}
+
+	private MetropolisHastingsTopicSampler(GibbsCounts counts, Random r, MetropolisHastingsProposals proposals,
+			boolean ownsProposals) {
+		this.counts = counts;
+		this.r = r;
+		alpha = counts.alpha;
+		gamma = counts.gamma;
+		nGamma = counts.getNounCount() * gamma;
+		this.proposals = proposals;
+		this.ownsProposals = ownsProposals;
+	}
+
+	/**
+	 * Rebuild the proposals from the current counts, unless they are shared.
+	 */
+	@Override
+	public void startSweep() {
+		if(ownsProposals) {
+			proposals.build();
+		}
+	}
+
+	@Override
+	public void resync() {
+		// the proposals are allowed to be stale, and nothing else is cached
+	}
+
+	@Override
+	public int resample(int v, int n, int tau) {
+		int[] numNounsInTopic = counts.numNounsInTopic;
+
+		counts.CWT.add(n, tau, -1);
+		counts.CVT.add(v, tau, -1);
+		numNounsInTopic[tau]--;
+		counts.numNounsWithVerb[v]--;
+
+		int s = tau;
+		double targetS = target(v, n, s);
+		for(int step = 0; step < NUM_MH_STEPS; step++) {
+			boolean verbStep = step % 2 == 0;
+			int t = verbStep ? proposals.proposeFromVerb(v, r) : proposals.proposeFromNoun(n, r);
+			if(t == s) {
+				continue;
+			}
+
+			double targetT = target(v, n, t);
+			double acceptance;
+			if(verbStep) {
+				acceptance = targetT * proposals.verbProposal(v, s) / (targetS * proposals.verbProposal(v, t));
+			} else {
+				acceptance = targetT * proposals.nounProposal(n, s) / (targetS * proposals.nounProposal(n, t));
+			}
+			if(acceptance >= 1.0 || r.nextDouble() < acceptance) {
+				s = t;
+				targetS = targetT;
+			}
+		}
+
+		counts.CWT.add(n, s, 1);
+		counts.CVT.add(v, s, 1);
+		numNounsInTopic[s]++;
+		counts.numNounsWithVerb[v]++;
+		return s;
+	}
+
+	private double target(int v, int n, int t) {
+		return (counts.CVT.get(v, t) + alpha) * (counts.CWT.get(n, t) + gamma) / (counts.numNounsInTopic[t] + nGamma);
+	}
+}
@@ -0,0 +1,285 @@
+package learning.lda;
+
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import util.HungarianAlgorithm;
+import util.XoroshiroRandom;
+
+/**
+ * K independent collapsed Gibbs chains in one process, for CollapsedGibbsSampler --chains=K.
+ *
+ * The chains share the corpus, which is read-only, and own everything else: topic assignments, counts,
+ * sampler and generator. They sweep in lockstep, one thread per chain, so their log-likelihoods can be
+ * compared iteration by iteration: after burn-in, the potential scale reduction (Gelman-Rubin R-hat) of the
+ * log-likelihood traces is reported every lag iterations, values close to 1 meaning the chains have mixed.
+ *
+ * Topic labels are arbitrary, so topic t of one chain is generally not topic t of another. Before averaging,
+ * the topics of every chain are matched one to one with those of the first chain, by maximizing the total
+ * Bhattacharyya coefficient of the matched noun distributions, see HungarianAlgorithm.
+ */
+public class MultiChainGibbsSampler {
+	private final GibbsCorpus corpus;
+	private final int V;
+	private final int N;
+	private final int T;
+	private final Chain[] chains;
+
+	/**
+	 * @param seed - chain k draws from the k-th split of a generator seeded with this
+	 */
+	public MultiChainGibbsSampler(GibbsCorpus corpus, int V, int N, int T, double alpha, double gamma,
+			GibbsOptions options, int numChains, long seed) {
+		this.corpus = corpus;
+		this.V = V;
+		this.N = N;
+		this.T = T;
+		XoroshiroRandom seeds = new XoroshiroRandom(seed);
+		chains = new Chain[numChains];
+		for(int k = 0; k < numChains; k++) {
+			chains[k] = new Chain(options, alpha, gamma, seeds.split());
+		}
+	}
+
+	/**
+	 * Run the chains with the schedule of CollapsedGibbsSampler, and write the averages of the aligned
+	 * beta / theta estimates to betaAvg.txt / thetaAvg.txt in baseDir.
+	 */
+	public void run(int burnin, int numIter, int lag, int numSampsPerLag, String baseDir) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(chains.length);
+		try {
+			double[][] traces = new double[chains.length][numIter];
+			for(int iter = 0; iter < numIter; iter++) {
+				long startTime = System.nanoTime();
+				final boolean takeSample = iter > burnin && (iter % lag) < numSampsPerLag;
+				List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+				for(final Chain chain : chains) {
+					tasks.add(new Callable<Void>() {
+						@Override
+						public Void call() {
+							chain.sweep();
+							if(takeSample) {
+								chain.accumulate();
+							}
+							return null;
+						}
+					});
+				}
+				// get() rethrows anything thrown by a chain
+				for(Future<Void> future : executor.invokeAll(tasks)) {
+					future.get();
+				}
+
+				for(int k = 0; k < chains.length; k++) {
+					traces[k][iter] = chains[k].logLikelihood.get();
+				}
+				System.out.println("At iteration " + iter + ", log-likelihood per chain = " + Arrays.toString(column(traces, iter)));
+				if(iter > burnin + 1 && ((iter - burnin) % lag == 0 || iter == numIter - 1)) {
+					System.out.println("R-hat of the log-likelihood over iterations " + (burnin + 1) + " to " + iter + " = "
+							+ potentialScaleReduction(traces, burnin + 1, iter + 1));
+				}
+				System.out.println("iteration " + iter + " took time: " + (System.nanoTime() - startTime) / Math.pow(10, 9));
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		for(Chain chain : chains) {
+			if(chain.numSamples == 0) {
+				throw new IllegalStateException("No samples were taken after burn-in");
+			}
+			chain.normalize();
+		}
+		double[][] beta = new double[T][N];
+		double[][] theta = new double[V][T];
+		for(Chain chain : chains) {
+			int[] topicOf = align(chains[0].cumBeta, chain.cumBeta);
+			for(int t = 0; t < T; t++) {
+				double[] source = chain.cumBeta[topicOf[t]];
+				for(int n = 0; n < N; n++) {
+					beta[t][n] += source[n] / chains.length;
+				}
+			}
+			for(int v = 0; v < V; v++) {
+				for(int t = 0; t < T; t++) {
+					theta[v][t] += chain.cumTheta[v][topicOf[t]] / chains.length;
+				}
+			}
+		}
+		writeMatrix(baseDir + "betaAvg.txt", beta);
+		writeMatrix(baseDir + "thetaAvg.txt", theta);
+	}
+
+	/**
+	 * Gelman-Rubin potential scale reduction of traces[k][from..to), one trace per chain:
+	 * sqrt(((n - 1) / n * W + B / n) / W), with W the mean within-chain variance and B / n the variance of
+	 * the chain means.
+	 */
+	public static double potentialScaleReduction(double[][] traces, int from, int to) {
+		int m = traces.length;
+		int n = to - from;
+		double[] means = new double[m];
+		double grandMean = 0.0;
+		for(int k = 0; k < m; k++) {
+			for(int i = from; i < to; i++) {
+				means[k] += traces[k][i];
+			}
+			means[k] /= n;
+			grandMean += means[k] / m;
+		}
+		double within = 0.0;
+		double between = 0.0;
+		for(int k = 0; k < m; k++) {
+			for(int i = from; i < to; i++) {
+				within += (traces[k][i] - means[k]) * (traces[k][i] - means[k]);
+			}
+			between += (means[k] - grandMean) * (means[k] - grandMean);
+		}
+		within /= m * (n - 1.0);
+		between /= m - 1.0;
+		return Math.sqrt(((n - 1.0) / n * within + between) / within);
+	}
+
+	/**
+	 * @return [t] = the topic of other matched with topic t of reference, both T x N noun distributions
+	 */
+	private int[] align(double[][] reference, double[][] other) {
+		double[][] sqrtReference = sqrt(reference);
+		double[][] sqrtOther = sqrt(other);
+		double[][] cost = new double[T][T];
+		for(int i = 0; i < T; i++) {
+			for(int j = 0; j < T; j++) {
+				double coefficient = 0.0;
+				for(int n = 0; n < N; n++) {
+					coefficient += sqrtReference[i][n] * sqrtOther[j][n];
+				}
+				cost[i][j] = -coefficient;
+			}
+		}
+		return HungarianAlgorithm.solve(cost);
+	}
+
+	private static double[][] sqrt(double[][] matrix) {
+		double[][] result = new double[matrix.length][];
+		for(int i = 0; i < matrix.length; i++) {
+			result[i] = new double[matrix[i].length];
+			for(int j = 0; j < matrix[i].length; j++) {
+				result[i][j] = Math.sqrt(matrix[i][j]);
+			}
+		}
+		return result;
+	}
+
+	private static double[] column(double[][] matrix, int col) {
+		double[] result = new double[matrix.length];
+		for(int i = 0; i < matrix.length; i++) {
+			result[i] = matrix[i][col];
+		}
+		return result;
+	}
+
+	private static void writeMatrix(String path, double[][] matrix) throws FileNotFoundException {
+		PrintWriter printWriter = new PrintWriter(path);
+		for(double[] row : matrix) {
+			for(int j = 0; j < row.length; j++) {
+				if(j > 0) {
+					printWriter.print("\t");
+				}
+				printWriter.print(row[j]);
+			}
+			printWriter.println();
+		}
+		printWriter.close();
+	}
+
+	/**
+	 * The state of one chain, only ever touched by one thread at a time.
+	 */
+	private class Chain {
+		final TopicAssignments z;
+		final GibbsCounts counts;
+		final GibbsLogLikelihood logLikelihood;
+		final TopicSampler sampler;
+		// sums of the beta / theta estimates of the samples, the averages once normalized
+		final double[][] cumBeta;
+		final double[][] cumTheta;
+		int numSamples;
+		// where readRow copies rows that aren't stored densely
+		private final int[] scratch;
+
+		Chain(GibbsOptions options, double alpha, double gamma, XoroshiroRandom r) {
+			boolean hybridCounts = options.getCountLayout() == GibbsOptions.CountLayout.HYBRID;
+			CountMatrix CWT = hybridCounts ? new HybridCountMatrix(N, T) : new DenseCountMatrix(N, T);
+			CountMatrix CVT = hybridCounts ? new HybridCountMatrix(V, T) : new DenseCountMatrix(V, T);
+			counts = new GibbsCounts(CWT, CVT, new int[T], new int[V], alpha, gamma);
+			z = new ArrayTopicAssignments(corpus.size(), T);
+			for(int i = 0; i < z.size(); i++) {
+				int t = r.nextInt(T);
+				z.set(i, t);
+				CWT.add(corpus.getNoun(i), t, 1);
+				CVT.add(corpus.getVerb(i), t, 1);
+				counts.numNounsInTopic[t]++;
+				counts.numNounsWithVerb[corpus.getVerb(i)]++;
+			}
+			logLikelihood = new GibbsLogLikelihood(counts);
+			sampler = CollapsedGibbsSampler.createTopicSampler(options.sampler, counts, r);
+			cumBeta = new double[T][N];
+			cumTheta = new double[V][T];
+			scratch = new int[T];
+		}
+
+		void sweep() {
+			sampler.startSweep();
+			for(int i = 0; i < z.size(); i++) {
+				int v = corpus.getVerb(i);
+				int n = corpus.getNoun(i);
+				int tau = z.get(i);
+				int newTopic = sampler.resample(v, n, tau);
+				if(newTopic != tau) {
+					z.set(i, newTopic);
+					logLikelihood.moveToken(v, n, tau, newTopic);
+				}
+			}
+		}
+
+		void accumulate() {
+			double nGamma = N * counts.gamma;
+			double tAlpha = T * counts.alpha;
+			for(int n = 0; n < N; n++) {
+				int[] row = counts.CWT.readRow(n, scratch);
+				int base = counts.CWT.rowOffset(n);
+				for(int t = 0; t < T; t++) {
+					cumBeta[t][n] += (row[base + t] + counts.gamma) / (counts.numNounsInTopic[t] + nGamma);
+				}
+			}
+			for(int v = 0; v < V; v++) {
+				int[] row = counts.CVT.readRow(v, scratch);
+				int base = counts.CVT.rowOffset(v);
+				for(int t = 0; t < T; t++) {
+					cumTheta[v][t] += (row[base + t] + counts.alpha) / (counts.numNounsWithVerb[v] + tAlpha);
+				}
+			}
+			numSamples++;
+		}
+
+		void normalize() {
+			for(double[] row : cumBeta) {
+				for(int n = 0; n < N; n++) {
+					row[n] /= numSamples;
+				}
+			}
+			for(double[] row : cumTheta) {
+				for(int t = 0; t < T; t++) {
+					row[t] /= numSamples;
+				}
+			}
+		}
+	}
+}
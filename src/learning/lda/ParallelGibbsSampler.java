@@ -0,0 +1,18 @@
+package learning.lda;
+
+/**
+ * A multithreaded sweep over the corpus for CollapsedGibbsSampler --threads=N, see
+ * ApproximateDistributedGibbsSampler and BlockParallelGibbsSampler.
+ */
+public interface ParallelGibbsSampler {
+	/**
+	 * One full Gibbs sweep over the corpus. When this returns, z, the counts and the log-likelihood
+	 * are consistent with each other.
+	 */
+	void sweep() throws Exception;
+
+	/**
+	 * Stop the worker threads.
+	 */
+	void shutdown();
+}
@@ -0,0 +1,40 @@
+package learning.lda;
+
+import java.io.IOException;
+
+/**
+ * Writes a rows x cols matrix of probabilities, e.g. a betaAtIter or thetaAtIter snapshot, one row at a time.
+ *
+ * A row is given as a base value shared by most of its cells plus the cells that differ from it, which is
+ * how the Gibbs estimates look: every cell with a zero count holds the same smoothed value.
+ */
+public abstract class SnapshotWriter {
+	protected final int rows;
+	protected final int cols;
+
+	protected SnapshotWriter(int rows, int cols) {
+		this.rows = rows;
+		this.cols = cols;
+	}
+
+	/**
+	 * @param pathWithoutExtension - e.g. baseDir + "betaAtIter" + iter, the extension is picked by format
+	 */
+	public static SnapshotWriter open(String pathWithoutExtension, GibbsOptions.SnapshotFormat format,
+			int rows, int cols) throws IOException {
+		switch(format) {
+		case TEXT:
+			return new TextSnapshotWriter(pathWithoutExtension + ".txt", rows, cols);
+		default:
+			return new BinarySnapshotWriter(pathWithoutExtension + BinarySnapshotWriter.EXTENSION, rows, cols);
+		}
+	}
+
+	/**
+	 * Write the next row: base everywhere, except values[i] at column entryCols[i] for i < numEntries.
+	 * @param entryCols - increasing column indices
+	 */
+	public abstract void writeRow(double base, int[] entryCols, double[] values, int numEntries) throws IOException;
+
+	public abstract void close() throws IOException;
+}
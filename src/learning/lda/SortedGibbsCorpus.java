@@ -0,0 +1,109 @@
+package learning.lda;
+
+/**
+ * The tokens of another corpus, ordered by verb and by noun within a verb, for CollapsedGibbsSampler
+ * --order=sorted.
+ *
+ * A sweep in this order reads the CVT row of a verb for all of its tokens in a row, and the CWT row of a
+ * noun for all the tokens of a (v,n) pair in a row, so both stay in cache. The tokens of a pair are also
+ * adjacent, which DenseTopicSampler exploits by updating the conditional of a pair instead of recomputing it.
+ *
+ * Topic assignments indexed by this corpus can be read and written in the order of the original corpus
+ * through inFileOrder, e.g. for z.txt and checkpoints.
+ */
+public class SortedGibbsCorpus extends GibbsCorpus {
+	private final int[] verbs;
+	private final int[] nouns;
+	// position[i] = the index in this corpus of token i of the original corpus
+	private final int[] position;
+	private int numRepeatedTokens = 0;
+
+	/**
+	 * Copy corpus in sorted order. Takes 12 bytes per token.
+	 */
+	public SortedGibbsCorpus(GibbsCorpus corpus, int V, int N) {
+		int C = corpus.size();
+		// a stable counting sort by noun followed by a stable counting sort by verb
+		int[] byNoun = new int[C];
+		int[] start = new int[N + 1];
+		for(int i = 0; i < C; i++) {
+			start[corpus.getNoun(i) + 1]++;
+		}
+		for(int n = 0; n < N; n++) {
+			start[n + 1] += start[n];
+		}
+		for(int i = 0; i < C; i++) {
+			byNoun[start[corpus.getNoun(i)]++] = i;
+		}
+
+		int[] byVerb = new int[C];
+		start = new int[V + 1];
+		for(int i = 0; i < C; i++) {
+			start[corpus.getVerb(i) + 1]++;
+		}
+		for(int v = 0; v < V; v++) {
+			start[v + 1] += start[v];
+		}
+		for(int i : byNoun) {
+			byVerb[start[corpus.getVerb(i)]++] = i;
+		}
+
+		verbs = new int[C];
+		nouns = new int[C];
+		position = new int[C];
+		for(int k = 0; k < C; k++) {
+			int i = byVerb[k];
+			verbs[k] = corpus.getVerb(i);
+			nouns[k] = corpus.getNoun(i);
+			position[i] = k;
+			if(k > 0 && verbs[k] == verbs[k - 1] && nouns[k] == nouns[k - 1]) {
+				numRepeatedTokens++;
+			}
+		}
+	}
+
+	/**
+	 * The number of tokens with the same (v,n) pair as the token before them, which DenseTopicSampler
+	 * resamples without recomputing the conditional.
+	 */
+	public int getRepeatedTokenCount() {
+		return numRepeatedTokens;
+	}
+
+	@Override
+	public int size() {
+		return verbs.length;
+	}
+
+	@Override
+	public int getVerb(int i) {
+		return verbs[i];
+	}
+
+	@Override
+	public int getNoun(int i) {
+		return nouns[i];
+	}
+
+	/**
+	 * A view of z, which is indexed by this corpus, indexed by the original corpus instead.
+	 */
+	public TopicAssignments inFileOrder(final TopicAssignments z) {
+		return new TopicAssignments() {
+			@Override
+			public int size() {
+				return z.size();
+			}
+
+			@Override
+			public int get(int i) {
+				return z.get(position[i]);
+			}
+
+			@Override
+			public void set(int i, int t) {
+				z.set(position[i], t);
+			}
+		};
+	}
+}
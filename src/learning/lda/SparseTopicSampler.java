@@ -0,0 +1,193 @@
+package learning.lda;
+
+import java.util.Random;
+
+/**
+ * SparseLDA (Yao, Mimno and McCallum, KDD 2009) for the verb-noun model.
+ *
+ * Dropping the denominator that is constant across topics, the conditional of topic t for a (v,n) token is
+ *   (CVT[v][t] + alpha) * (CWT[n][t] + gamma) / (numNounsInTopic[t] + N * gamma)
+ * which splits into three buckets:
+ *   smoothing: alpha * gamma / (numNounsInTopic[t] + N * gamma)                  - every topic
+ *   verb:      CVT[v][t] * gamma / (numNounsInTopic[t] + N * gamma)              - only topics used by v
+ *   noun:      (CVT[v][t] + alpha) * CWT[n][t] / (numNounsInTopic[t] + N * gamma) - only topics used by n
+ * The totals of the first two are cached and updated incrementally, and the third is computed over the
+ * noun's nonzero topics only, so the cost per token scales with the number of nonzero counts instead of T.
+ *
+ * The nonzero topics of a row come from CountMatrix.getNonzero, so this should run on HybridCountMatrix
+ * counts, which enumerate a row in O(nonzero) and list its largest counts first, so the linear search of
+ * a draw usually stops after the first few topics.
+ *
+ * The verb bucket is rebuilt whenever the verb changes, so this works best when the tokens of a verb are
+ * swept consecutively, which is the case for vnIdx files generated by TrainSetToLDAFormatConverter.
+ */
+public class SparseTopicSampler implements TopicSampler {
+	private final GibbsCounts counts;
+	private final Random r;
+	private final int T;
+	private final double alpha;
+	private final double gamma;
+	private final double nGamma;
+
+	// coef[t] = (CVT[curV][t] + alpha) / (numNounsInTopic[t] + N * gamma)
+	// For the topics the current verb doesn't use, this is just alpha / (numNounsInTopic[t] + N * gamma)
+	private final double[] coef;
+	private double smoothingMass;
+	private double verbMass;
+	private int curV;
+
+	// scratch space for the nonzero counts of a row, and the noun bucket weights of the current token
+	private final int[] rowTopics;
+	private final int[] rowCounts;
+	private final double[] nounWeights;
+
+	public SparseTopicSampler(GibbsCounts counts, Random r) {
+		this.counts = counts;
+		this.r = r;
+		T = counts.getTopicCount();
+		alpha = counts.alpha;
+		gamma = counts.gamma;
+		nGamma = counts.getNounCount() * gamma;
+
+		coef = new double[T];
+		rowTopics = new int[T];
+		rowCounts = new int[T];
+		nounWeights = new double[T];
+
+		resync();
+	}
+
+	@Override
+	public void startSweep() {
+		// nothing to refresh
+	}
+
+	@Override
+	public void resync() {
+		int[] numNounsInTopic = counts.numNounsInTopic;
+		smoothingMass = 0.0;
+		for(int t = 0; t < T; t++) {
+			double denom = numNounsInTopic[t] + nGamma;
+			coef[t] = alpha / denom;
+			smoothingMass += alpha * gamma / denom;
+		}
+		verbMass = 0.0;
+		curV = -1;
+	}
+
+	@Override
+	public int resample(int v, int n, int tau) {
+		if(v != curV) {
+			switchVerb(v);
+		}
+
+		int verbCount = counts.CVT.get(v, tau);
+		beforeTopicChange(tau, verbCount);
+		counts.CWT.add(n, tau, -1);
+		counts.CVT.add(v, tau, -1);
+		counts.numNounsInTopic[tau]--;
+		counts.numNounsWithVerb[v]--;
+		afterTopicChange(tau, verbCount - 1);
+
+		int newTopic = draw(v, n);
+
+		verbCount = counts.CVT.get(v, newTopic);
+		beforeTopicChange(newTopic, verbCount);
+		counts.CWT.add(n, newTopic, 1);
+		counts.CVT.add(v, newTopic, 1);
+		counts.numNounsInTopic[newTopic]++;
+		counts.numNounsWithVerb[v]++;
+		afterTopicChange(newTopic, verbCount + 1);
+
+		return newTopic;
+	}
+
+	private int draw(int v, int n) {
+		int numTopics = counts.CWT.getNonzero(n, rowTopics, rowCounts);
+		double nounMass = 0.0;
+		for(int i = 0; i < numTopics; i++) {
+			double w = coef[rowTopics[i]] * rowCounts[i];
+			nounWeights[i] = w;
+			nounMass += w;
+		}
+
+		double u = r.nextDouble() * (smoothingMass + verbMass + nounMass);
+		if(u < nounMass) {
+			for(int i = 0; i < numTopics - 1; i++) {
+				u -= nounWeights[i];
+				if(u <= 0) {
+					return rowTopics[i];
+				}
+			}
+			return rowTopics[numTopics - 1];
+		}
+		u -= nounMass;
+
+		int[] numNounsInTopic = counts.numNounsInTopic;
+		if(u < verbMass) {
+			numTopics = counts.CVT.getNonzero(v, rowTopics, rowCounts);
+			if(numTopics > 0) {
+				for(int i = 0; i < numTopics - 1; i++) {
+					int t = rowTopics[i];
+					u -= rowCounts[i] * gamma / (numNounsInTopic[t] + nGamma);
+					if(u <= 0) {
+						return t;
+					}
+				}
+				return rowTopics[numTopics - 1];
+			}
+		}
+		u -= verbMass;
+
+		for(int t = 0; t < T - 1; t++) {
+			u -= alpha * gamma / (numNounsInTopic[t] + nGamma);
+			if(u <= 0) {
+				return t;
+			}
+		}
+		return T - 1;
+	}
+
+	/**
+	 * Point coef and the verb bucket at verb v.
+	 */
+	private void switchVerb(int v) {
+		int[] numNounsInTopic = counts.numNounsInTopic;
+		if(curV >= 0) {
+			int numTopics = counts.CVT.getNonzero(curV, rowTopics, rowCounts);
+			for(int i = 0; i < numTopics; i++) {
+				int t = rowTopics[i];
+				coef[t] = alpha / (numNounsInTopic[t] + nGamma);
+			}
+		}
+
+		int numTopics = counts.CVT.getNonzero(v, rowTopics, rowCounts);
+		verbMass = 0.0;
+		for(int i = 0; i < numTopics; i++) {
+			int t = rowTopics[i];
+			double denom = numNounsInTopic[t] + nGamma;
+			coef[t] = (rowCounts[i] + alpha) / denom;
+			verbMass += rowCounts[i] * gamma / denom;
+		}
+		curV = v;
+	}
+
+	/**
+	 * @param verbCount - CVT[curV][t] before the change
+	 */
+	private void beforeTopicChange(int t, int verbCount) {
+		double denom = counts.numNounsInTopic[t] + nGamma;
+		smoothingMass -= alpha * gamma / denom;
+		verbMass -= verbCount * gamma / denom;
+	}
+
+	/**
+	 * @param verbCount - CVT[curV][t] after the change
+	 */
+	private void afterTopicChange(int t, int verbCount) {
+		double denom = counts.numNounsInTopic[t] + nGamma;
+		smoothingMass += alpha * gamma / denom;
+		verbMass += verbCount * gamma / denom;
+		coef[t] = (verbCount + alpha) / denom;
+	}
+}
@@ -15,6 +15,7 @@ import org.apache.commons.lang3.tuple.Pair;
 import org.apache.commons.math3.distribution.GammaDistribution;
 
 import util.StatUtil;
+import util.XoroshiroRandom;
 
 public class StochasticVariationalInference {
 	
@@ -27,6 +28,10 @@ public class StochasticVariationalInference {
 		if(!baseDir.endsWith("/")) {
 			baseDir += "/";
 		}
+		// optional seed, so that runs can be reproduced
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : XoroshiroRandom.newSeed();
+		System.out.println("random seed = " + seed);
+		XoroshiroRandom rng = new XoroshiroRandom(seed);
 		
 		/*######################################
 		# DATA INGESTION
@@ -139,14 +144,16 @@ public class StochasticVariationalInference {
 		final int MAX_CONVERGENCE_ITER = 100;
 		
 		//lambda is param for distribution of objects/noun | topic
-		double[][] lambda = new double[NUM_TOPIC][N];
+		// kept lazily, so that the M-step only touches the nouns of the document
+		LazyLambda lambda = new LazyLambda(NUM_TOPIC, N);
 
-		GammaDistribution lambdaSampler = new GammaDistribution(100.0, 0.01);
+		GammaDistribution lambdaSampler = new GammaDistribution(rng, 100.0, 0.01,
+				GammaDistribution.DEFAULT_INVERSE_ABSOLUTE_ACCURACY);
 		
 		//Initialize lambda(t=0) randomly
 		for(int k = 0; k < NUM_TOPIC; k++) {
 			for(int n = 0; n < N; n++) {
-				lambda[k][n] = lambdaSampler.sample();
+				lambda.set(k, n, lambdaSampler.sample());
 			}
 		}
 		
@@ -156,9 +163,12 @@ public class StochasticVariationalInference {
 		double[][] gamma = new double[numDistinctVerbs][NUM_TOPIC];
 		
 		// initialize all the matrices here to save memory
-		double[][] digamma_lambda = new double[NUM_TOPIC][N];
-		double[] sum_digamma_lambda = new double[NUM_TOPIC];
-		double[] digamma_gamma = new double[NUM_TOPIC];
+		ExpectedLogBeta expectedLogBeta = new ExpectedLogBeta(lambda);
+		// calculate lambda_prime -- need to do it on the fly if we don't want to save phi's
+		// only the columns of the document's nouns are stored, and reused for the next document
+		TopicNounStatistics lambdaPrime = new TopicNounStatistics(NUM_TOPIC, N);
+		int[] docNouns = new int[0];
+		double[] exp_E_log_theta = new double[NUM_TOPIC];
 		double[] tempGammaD = new double[NUM_TOPIC];
 		double[] pows = new double[NUM_TOPIC];
 		
@@ -179,37 +189,32 @@ public class StochasticVariationalInference {
 				gamma[d][k] = lambdaSampler.sample();
 			}
 			
-			// precompute digamma of lambdas
-			clear(digamma_lambda);
-			Arrays.fill(sum_digamma_lambda, 0);
-			for(int k = 0; k < NUM_TOPIC; k++) {
-				for(int n = 0; n < N; n++) {
-					digamma_lambda[k][n] = digamma0(lambda[k][n]);
-					sum_digamma_lambda[k] += lambda[k][n];
-				}
-				sum_digamma_lambda[k] = digamma0(sum_digamma_lambda[k]);
+			// precompute E[log beta] for the nouns of the document only, they are all the E-step reads
+			if(docNouns.length < compressedDataset[d].size()) {
+				docNouns = new int[compressedDataset[d].size()];
+			}
+			for(int i = 0; i < compressedDataset[d].size(); i++) {
+				docNouns[i] = compressedDataset[d].get(i).getKey();
 			}
+			expectedLogBeta.load(docNouns, compressedDataset[d].size());
 		
 			int numPhiGammaIter = 0;
 
-			// calculate lambda_prime -- need to do it on the fly if we don't want to save phi's
-			double[][] lambda_prime = new double[NUM_TOPIC][N];
 			
 			// compute phi and gamma until convergence
 			while(true) {
-				clear(lambda_prime);
+				lambdaPrime.clear();
 				
 				double curTime = System.currentTimeMillis();
-				// precompute the digamma of gammas
-				//digamma_gamma[k] = digamma(gamma_d_k)
-				Arrays.fill(digamma_gamma, 0);
-				// digamma(sum_j=1->K {gamma_d_j})
-				double sum_digamma = 0.0;
+				// precompute exp(E_log_theta) = exp(digamma(gamma_d_k) - digamma(sum_j=1->K {gamma_d_j}))
+				double sum_gamma = 0.0;
+				for(int k = 0; k < NUM_TOPIC; k++) {
+					sum_gamma += gamma[d][k];
+				}
+				double sum_digamma = VariationalKernels.digamma(sum_gamma);
 				for(int k = 0; k < NUM_TOPIC; k++) {
-					digamma_gamma[k] = digamma0(gamma[d][k]);
-					sum_digamma += gamma[d][k];
+					exp_E_log_theta[k] = Math.exp(VariationalKernels.digamma(gamma[d][k]) - sum_digamma);
 				}
-				sum_digamma = digamma0(sum_digamma);
 			
 				// break the gamma_d = alpha + sum {phi_d_n}
 				Arrays.fill(tempGammaD, ALPHA);
@@ -218,30 +223,22 @@ public class StochasticVariationalInference {
 					int noun = nFreq.getKey();
 					int freq = nFreq.getValue();
 					
-					// the E_log_theta + E_log_beta's, we can't just compute e ^ that for the phi's
-					Arrays.fill(pows, 0);
+					// phi is proportional to exp(E_log_theta) * exp(E_log_beta)
+					double[] lambda_prime_noun = lambdaPrime.getSlab(lambdaPrime.touch(noun));
+					double normalizer = VariationalKernels.multiply(exp_E_log_theta, expectedLogBeta.expRow(i),
+							pows, NUM_TOPIC);
 					// compute and make sure sum {phi_dn} = 1
-					for(int k = 0; k < NUM_TOPIC; k++) {
-						double E_log_theta = digamma_gamma[k] - sum_digamma;
-						double E_log_beta = digamma_lambda[k][noun] - sum_digamma_lambda[k];
-						pows[k] = Math.exp(E_log_theta + E_log_beta);
-						// System.out.println("Stub");
-					}
-					
-					double normalizer = 0.0;
-					for(double p : pows) {
-						normalizer += p;
-					}
+					double freq_over_normalizer = freq / normalizer;
 					
 					// update gamma_d
 					for(int k = 0; k < NUM_TOPIC; k++) {
 						// Can collapse identical words in the document together, since the math form is exactly the same
-						double phi_i_k = pows[k] / normalizer;
-						tempGammaD[k] += freq * phi_i_k;
+						double freq_phi_i_k = pows[k] * freq_over_normalizer;
+						tempGammaD[k] += freq_phi_i_k;
 						
 						// Assume that this is the converging iteration
 						// if not converging iteration, lambda_prime gets reset to 0 anyways
-						lambda_prime[k][noun] +=  freq * phi_i_k;
+						lambda_prime_noun[k] += freq_phi_i_k;
 					}
 				}
 
@@ -272,24 +269,14 @@ public class StochasticVariationalInference {
 				numPhiGammaIter++;
 			}// got phi and gamma
 			
-			// lambda_t = (1-p_t) * prev lambda + stuff ---- + stuff later
-			for(int k = 0; k < NUM_TOPIC; k++) {
-				for(int n = 0; n < N; n++) {
-					lambda[k][n] *= 1.0 - stepSize;
-				}
-				
-				// lambda_prime will already have sum {phi w} term from the very last iteration - when converged
-				
-				for(int n = 0; n < N; n++) {
-					lambda_prime[k][n] *= D;
-					lambda_prime[k][n] += ETA;
-				}
-				
-				// merge lambda_prime
-				for(int n = 0; n < N; n++) {
-					lambda[k][n] += stepSize * lambda_prime[k][n];
-				}
-			} // done getting lambda(t)		
+			// lambda_t = (1-p_t) * prev lambda + p_t * (D * lambda_prime + ETA)
+			// the decay and ETA apply to every cell alike, and are applied to all of them at once
+			lambda.decay(stepSize, ETA);
+			
+			// lambda_prime will already have sum {phi w} term from the very last iteration - when converged,
+			// and is zero outside the nouns of the document
+			lambda.addColumns(lambdaPrime, stepSize * D, null);
+			// done getting lambda(t)		
 			
 			// store params
 
@@ -301,7 +288,7 @@ public class StochasticVariationalInference {
 				PrintWriter printWriter = new PrintWriter(baseDir + "betaAtIter" + iter + ".txt");
 			
 		    for (int t = 0; t < NUM_TOPIC; t++) {
-		    	double[] beta_t = getDirichletMode(lambda[t]);
+		    	double[] beta_t = getDirichletMode(lambda.getRow(t, new double[N]));
 		      for (int n = 0; n < N; n++) {
 		        printWriter.print(beta_t[n]);
 		        if (n < N-1) {
@@ -338,7 +325,7 @@ public class StochasticVariationalInference {
 			
 		    for (int t = 0; t < NUM_TOPIC; t++) {
 		      for (int n = 0; n < N; n++) {
-		        printWriter.print(lambda[t][n]);
+		        printWriter.print(lambda.get(t, n));
 		        if (n < N-1) {
 		        	printWriter.print("\t");
 		        } else {
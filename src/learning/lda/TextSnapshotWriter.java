@@ -0,0 +1,40 @@
+package learning.lda;
+
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * The original snapshot format: one tab separated line of doubles per row.
+ */
+public class TextSnapshotWriter extends SnapshotWriter {
+	private final PrintWriter printWriter;
+	private final double[] row;
+
+	public TextSnapshotWriter(String path, int rows, int cols) throws FileNotFoundException {
+		super(rows, cols);
+		printWriter = new PrintWriter(path);
+		row = new double[cols];
+	}
+
+	@Override
+	public void writeRow(double base, int[] entryCols, double[] values, int numEntries) {
+		Arrays.fill(row, base);
+		for(int i = 0; i < numEntries; i++) {
+			row[entryCols[i]] = values[i];
+		}
+		for(int col = 0; col < cols; col++) {
+			printWriter.print(row[col]);
+			if(col < cols - 1) {
+				printWriter.print("\t");
+			} else {
+				printWriter.println();
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		printWriter.close();
+	}
+}
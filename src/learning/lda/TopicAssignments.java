@@ -0,0 +1,24 @@
+package learning.lda;
+
+/**
+ * z[i] = the current topic of token i of a GibbsCorpus.
+ *
+ * Each assignment takes 16 bits, half of an int[], which is enough for up to 65536 topics.
+ * Packing tighter (e.g. 9 bits for T <= 512) would make neighbouring tokens share a word, and the
+ * parallel samplers write the assignments of different tokens from different threads.
+ */
+public abstract class TopicAssignments {
+	public static final int MAX_TOPICS = Character.MAX_VALUE + 1;
+
+	public abstract int size();
+
+	public abstract int get(int i);
+
+	public abstract void set(int i, int t);
+
+	static void checkTopicCount(int numTopics) {
+		if(numTopics > MAX_TOPICS) {
+			throw new IllegalArgumentException("At most " + MAX_TOPICS + " topics are supported, got " + numTopics);
+		}
+	}
+}
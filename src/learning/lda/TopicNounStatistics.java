@@ -0,0 +1,80 @@
+package learning.lda;
+
+import java.util.Arrays;
+
+/**
+ * A sparse K x N matrix of sufficient statistics, the lambda_prime of stochastic variational inference:
+ * [k][n] = sum over the tokens of noun n of freq * phi[k].
+ *
+ * Only the columns of the nouns touched since the last clear() are stored, as K-wide slabs in the order the
+ * nouns were first touched, so clearing costs O(K * touched nouns) instead of O(K * N). The slabs are kept
+ * across clears, so that the matrix can be reused without allocating.
+ */
+public class TopicNounStatistics {
+	private final int K;
+	// column[n] = the slab of noun n, -1 = untouched
+	private final int[] column;
+	private int[] nouns = new int[0];
+	private double[][] slabs = new double[0][];
+	private int numColumns = 0;
+
+	public TopicNounStatistics(int K, int N) {
+		this.K = K;
+		column = new int[N];
+		Arrays.fill(column, -1);
+	}
+
+	/**
+	 * @return the index of the slab of noun n, which is allocated, zeroed, if n was untouched
+	 */
+	public int touch(int n) {
+		int j = column[n];
+		if(j >= 0) {
+			return j;
+		}
+		if(numColumns == slabs.length) {
+			int oldLength = slabs.length;
+			slabs = Arrays.copyOf(slabs, Math.max(16, 2 * oldLength));
+			nouns = Arrays.copyOf(nouns, slabs.length);
+			for(int i = oldLength; i < slabs.length; i++) {
+				slabs[i] = new double[K];
+			}
+		}
+		j = numColumns++;
+		column[n] = j;
+		nouns[j] = n;
+		return j;
+	}
+
+	/**
+	 * The number of touched nouns.
+	 */
+	public int size() {
+		return numColumns;
+	}
+
+	/**
+	 * The touched nouns, in the order of their slabs, valid up to size().
+	 */
+	public int[] getNouns() {
+		return nouns;
+	}
+
+	/**
+	 * @return [k] = the statistic of topic k for the j-th touched noun
+	 */
+	public double[] getSlab(int j) {
+		return slabs[j];
+	}
+
+	/**
+	 * Zero all the touched columns and forget them.
+	 */
+	public void clear() {
+		for(int j = 0; j < numColumns; j++) {
+			column[nouns[j]] = -1;
+			Arrays.fill(slabs[j], 0);
+		}
+		numColumns = 0;
+	}
+}
@@ -0,0 +1,27 @@
+package learning.lda;
+
+/**
+ * Draws a new topic for a single (v,n) token of the collapsed Gibbs sampler,
+ * and moves the token's counts from its old topic to the new one.
+ *
+ * Implementations may cache quantities derived from the counts they were built on, so they must be
+ * the only writer of those counts, and resync() has to be called whenever the counts were changed
+ * by someone else. Instances are not thread safe - parallel samplers create one per worker.
+ */
+public interface TopicSampler {
+	/**
+	 * @param tau - the topic the token is currently assigned to
+	 * @return the newly sampled topic, which the counts already reflect
+	 */
+	int resample(int v, int n, int tau);
+
+	/**
+	 * Called before every sweep over the corpus.
+	 */
+	void startSweep();
+
+	/**
+	 * Rebuild every cached quantity from the current counts.
+	 */
+	void resync();
+}
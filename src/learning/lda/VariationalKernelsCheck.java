@@ -0,0 +1,67 @@
+package learning.lda;
+
+import java.util.Random;
+
+import org.apache.commons.math3.special.Gamma;
+
+/**
+ * Checks the accuracy of VariationalKernels against the scalar code they replace, and fails if a kernel
+ * is less accurate.
+ */
+public class VariationalKernelsCheck {
+	public static void main(String[] args) {
+		// digamma: the same approximation as digamma0 with fewer divisions, so it should be at most as far
+		// from the exact digamma of commons math as digamma0. Near 0, digamma0 loses the low bits of x to
+		// the shift by 6, which this does not.
+		double maxError = 0.0;
+		double maxScalarError = 0.0;
+		for(double x = 1e-6; x < 1e12; x *= 1.01) {
+			double exact = Gamma.digamma(x);
+			double scale = Math.max(1.0, Math.abs(exact));
+			maxError = Math.max(maxError, Math.abs(VariationalKernels.digamma(x) - exact) / scale);
+			maxScalarError = Math.max(maxScalarError,
+					Math.abs(StochasticVariationalInference.digamma0(x) - exact) / scale);
+		}
+		System.out.println("digamma: max relative error = " + maxError + ", of digamma0 = " + maxScalarError);
+		check(maxError < 1e-8 && maxError <= maxScalarError, "digamma is less accurate than digamma0");
+
+		// phi: exp(a) * exp(b) normalized against exp(a + b) normalized, over the range of E[log theta] and
+		// E[log beta] of a few hundred topics
+		Random r = new Random(42);
+		int K = 300;
+		double[] a = new double[K];
+		double[] b = new double[K];
+		double[] expA = new double[K];
+		double[] expB = new double[K];
+		double[] product = new double[K];
+		double[] reference = new double[K];
+		double maxPhiError = 0.0;
+		for(int trial = 0; trial < 1000; trial++) {
+			for(int k = 0; k < K; k++) {
+				a[k] = -300 * Math.pow(r.nextDouble(), 4);
+				b[k] = -300 * Math.pow(r.nextDouble(), 4);
+				expA[k] = Math.exp(a[k]);
+				expB[k] = Math.exp(b[k]);
+				reference[k] = Math.exp(a[k] + b[k]);
+			}
+			double normalizer = VariationalKernels.multiply(expA, expB, product, K);
+			double referenceNormalizer = 0.0;
+			for(double p : reference) {
+				referenceNormalizer += p;
+			}
+			for(int k = 0; k < K; k++) {
+				maxPhiError = Math.max(maxPhiError,
+						Math.abs(product[k] / normalizer - reference[k] / referenceNormalizer));
+			}
+		}
+		System.out.println("phi: max error = " + maxPhiError);
+		check(maxPhiError < 1e-13, "phi is inaccurate");
+		System.out.println("OK");
+	}
+
+	private static void check(boolean condition, String message) {
+		if(!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+}
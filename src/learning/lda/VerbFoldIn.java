@@ -0,0 +1,345 @@
+package learning.lda;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.math3.special.Gamma;
+
+import util.StatUtil;
+import util.XoroshiroRandom;
+
+/**
+ * Estimates Pr(topic) of a verb the model wasn't trained on, from the nouns observed with it,
+ * keeping the model's Pr(noun | topic) fixed.
+ *
+ * GIBBS runs a collapsed Gibbs chain over the verb's tokens only, where token i with noun n gets topic t with
+ * probability ~ (count of t among the verb's other tokens + alpha) * Pr(n | t), and averages the topic
+ * distribution over the sweeps after burn-in. VARIATIONAL runs the E-step of variational LDA:
+ *   phi(n, t) ~ Pr(n | t) * exp(digamma(gamma_t)),  gamma_t = alpha + sum_n count(n) * phi(n, t)
+ * until gamma converges, and returns gamma normalized. It costs O(distinct nouns * T) per iteration
+ * regardless of the counts, where a Gibbs sweep costs O(tokens * T).
+ *
+ * Nouns the model doesn't know are ignored; a verb without any known noun gets the uniform distribution.
+ * Every verb of a batch draws from a generator seeded with the batch seed and the verb's position, so
+ * the results don't depend on the number of threads.
+ */
+public class VerbFoldIn {
+	public static final String USAGE = "Usage: <modelDir> <thetaFile> <betaFile> <observationsFile> <outputFile>"
+			+ " [--method=gibbs|variational] [--threads=N] [--seed=S]";
+
+	public static enum Method {
+		GIBBS,
+		VARIATIONAL
+	}
+
+	private static final int GIBBS_BURNIN = 20;
+	private static final int GIBBS_SWEEPS = 50;
+	private static final int VARIATIONAL_MAX_ITER = 100;
+	// the E-step stops once the mean change of gamma falls below this
+	private static final double VARIATIONAL_TOLERANCE = 1e-4;
+	// number of verbs handed to a thread at a time
+	private static final int BATCH_CHUNK = 64;
+
+	private final LDAModel model;
+	private final Method method;
+	private final double alpha;
+	private final int T;
+
+	/**
+	 * @param alpha - the Dirichlet prior on the topic distribution of a verb, 50 / T for models trained
+	 * by CollapsedGibbsSampler
+	 */
+	public VerbFoldIn(LDAModel model, Method method, double alpha) {
+		this.model = model;
+		this.method = method;
+		this.alpha = alpha;
+		T = model.getTopicCount();
+	}
+
+	/**
+	 * @param nounCounts - number of times each noun was observed with the verb
+	 * @param r - only used by GIBBS
+	 * @return Pr(topic) of the verb
+	 */
+	public double[] foldIn(Map<String, Integer> nounCounts, Random r) {
+		// Pr(noun | topic) of the known nouns, one row of T per noun
+		List<Integer> known = new ArrayList<Integer>();
+		List<Integer> counts = new ArrayList<Integer>();
+		for(Entry<String, Integer> entry : nounCounts.entrySet()) {
+			int nid = model.getNounId(entry.getKey());
+			if(nid >= 0 && entry.getValue() > 0) {
+				known.add(nid);
+				counts.add(entry.getValue());
+			}
+		}
+		int numNouns = known.size();
+		double[] nounWeights = new double[numNouns * T];
+		int[] nounCount = new int[numNouns];
+		for(int j = 0; j < numNouns; j++) {
+			nounCount[j] = counts.get(j);
+			for(int t = 0; t < T; t++) {
+				nounWeights[j * T + t] = model.getPrNounForTopic(known.get(j), t);
+			}
+		}
+
+		if(numNouns == 0) {
+			double[] uniform = new double[T];
+			for(int t = 0; t < T; t++) {
+				uniform[t] = 1.0 / T;
+			}
+			return uniform;
+		}
+		return method == Method.GIBBS ? gibbs(nounWeights, nounCount, r) : variational(nounWeights, nounCount);
+	}
+
+	/**
+	 * foldIn for every verb, on numThreads threads, and register the results with the model, see
+	 * LDAModel.addFoldedInVerb. Verbs the model was trained on keep their topic distribution there.
+	 * @return Pr(topic) of each verb, in the iteration order of observations
+	 */
+	public Map<String, double[]> foldInAll(Map<String, Map<String, Integer>> observations, int numThreads, final long seed)
+			throws Exception {
+		final List<Map<String, Integer>> verbCounts = new ArrayList<Map<String, Integer>>(observations.values());
+		final double[][] results = new double[verbCounts.size()][];
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for(int start = 0; start < verbCounts.size(); start += BATCH_CHUNK) {
+			final int lo = start;
+			final int hi = Math.min(verbCounts.size(), start + BATCH_CHUNK);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					XoroshiroRandom r = new XoroshiroRandom();
+					for(int i = lo; i < hi; i++) {
+						r.setSeed(seed + i);
+						results[i] = foldIn(verbCounts.get(i), r);
+					}
+					return null;
+				}
+			});
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			// get() rethrows anything thrown by a task
+			for(Future<Void> future : executor.invokeAll(tasks)) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		Map<String, double[]> topicDists = new LinkedHashMap<String, double[]>();
+		int i = 0;
+		for(String verb : observations.keySet()) {
+			topicDists.put(verb, results[i]);
+			model.addFoldedInVerb(verb, results[i]);
+			i++;
+		}
+		return topicDists;
+	}
+
+	private double[] gibbs(double[] nounWeights, int[] nounCount, Random r) {
+		int numTokens = 0;
+		for(int count : nounCount) {
+			numTokens += count;
+		}
+		int[] tokenNoun = new int[numTokens];
+		int[] z = new int[numTokens];
+		int[] topicCount = new int[T];
+		double[] cumulative = new double[T];
+		for(int j = 0, i = 0; j < nounCount.length; j++) {
+			for(int c = 0; c < nounCount[j]; c++) {
+				tokenNoun[i++] = j;
+			}
+		}
+
+		// the first sweep adds the tokens one by one, each drawn given the ones before it
+		double[] topicDist = new double[T];
+		for(int sweep = 0; sweep < GIBBS_SWEEPS; sweep++) {
+			for(int i = 0; i < numTokens; i++) {
+				if(sweep > 0) {
+					topicCount[z[i]]--;
+				}
+				int base = tokenNoun[i] * T;
+				double sum = 0.0;
+				for(int t = 0; t < T; t++) {
+					sum += (topicCount[t] + alpha) * nounWeights[base + t];
+					cumulative[t] = sum;
+				}
+				z[i] = search(cumulative, r.nextDouble() * sum);
+				topicCount[z[i]]++;
+			}
+			if(sweep >= GIBBS_BURNIN) {
+				for(int t = 0; t < T; t++) {
+					topicDist[t] += (topicCount[t] + alpha) / (numTokens + T * alpha);
+				}
+			}
+		}
+		for(int t = 0; t < T; t++) {
+			topicDist[t] /= GIBBS_SWEEPS - GIBBS_BURNIN;
+		}
+		return topicDist;
+	}
+
+	private double[] variational(double[] nounWeights, int[] nounCount) {
+		int numTokens = 0;
+		for(int count : nounCount) {
+			numTokens += count;
+		}
+		double[] gamma = new double[T];
+		double[] newGamma = new double[T];
+		double[] expDigamma = new double[T];
+		double[] phi = new double[T];
+		for(int t = 0; t < T; t++) {
+			gamma[t] = alpha + (double) numTokens / T;
+		}
+
+		for(int iter = 0; iter < VARIATIONAL_MAX_ITER; iter++) {
+			// digamma(sum of gamma) is the same for every topic and cancels out when phi is normalized
+			for(int t = 0; t < T; t++) {
+				expDigamma[t] = Math.exp(Gamma.digamma(gamma[t]));
+				newGamma[t] = alpha;
+			}
+			for(int j = 0; j < nounCount.length; j++) {
+				int base = j * T;
+				double normalizer = 0.0;
+				for(int t = 0; t < T; t++) {
+					phi[t] = nounWeights[base + t] * expDigamma[t];
+					normalizer += phi[t];
+				}
+				if(normalizer == 0) {
+					continue;
+				}
+				double scale = nounCount[j] / normalizer;
+				for(int t = 0; t < T; t++) {
+					newGamma[t] += scale * phi[t];
+				}
+			}
+
+			double change = 0.0;
+			for(int t = 0; t < T; t++) {
+				change += Math.abs(newGamma[t] - gamma[t]);
+			}
+			double[] swap = gamma;
+			gamma = newGamma;
+			newGamma = swap;
+			if(change / T < VARIATIONAL_TOLERANCE) {
+				break;
+			}
+		}
+
+		double sum = 0.0;
+		for(double g : gamma) {
+			sum += g;
+		}
+		for(int t = 0; t < T; t++) {
+			gamma[t] /= sum;
+		}
+		return gamma;
+	}
+
+	// smallest t with cumulative[t] >= u
+	private static int search(double[] cumulative, double u) {
+		int lo = 0;
+		int hi = cumulative.length - 1;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(cumulative[mid] < u) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Fold in every verb of observationsFile that the model doesn't know, and write one row per verb:
+	 * the verb followed by its topic probabilities, tab separated. Written to LDAModel.FOLDED_IN_VERBS_FILE of
+	 * modelDir, the rows are loaded along with the model, so getPrTopicForVerb answers for the new verbs.
+	 * @param args - observationsFile has the format of the input of data.preprocess.TrainSetToLDAFormatConverter
+	 */
+	public static void main(String[] args) throws Exception {
+		if(args.length < 5) {
+			System.err.println(USAGE);
+			return;
+		}
+		Method method = Method.GIBBS;
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		long seed = XoroshiroRandom.newSeed();
+		try {
+			for(int i = 5; i < args.length; i++) {
+				if(args[i].startsWith("--method=")) {
+					method = Method.valueOf(args[i].substring("--method=".length()).toUpperCase());
+				} else if(args[i].startsWith("--threads=")) {
+					numThreads = Integer.parseInt(args[i].substring("--threads=".length()));
+				} else if(args[i].startsWith("--seed=")) {
+					seed = Long.parseLong(args[i].substring("--seed=".length()));
+				} else {
+					throw new IllegalArgumentException("Unknown option " + args[i]);
+				}
+			}
+			if(numThreads < 1) {
+				throw new IllegalArgumentException("--threads must be positive");
+			}
+		} catch(IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			return;
+		}
+
+		LDAModel model = LDAModel.loadModel(args[0], args[1], args[2]);
+		Map<String, Map<String, Integer>> observations = new LinkedHashMap<String, Map<String, Integer>>();
+		int numKnownVerbs = 0;
+		BufferedReader reader = new BufferedReader(new FileReader(args[3]));
+		try {
+			String line = reader.readLine();
+			while(line != null) {
+				String[] toks = line.split("\t");
+				String verb = toks[0];
+				if(Integer.parseInt(toks[3].trim()) == 1) {
+					if(model.getVerbId(verb) >= 0) {
+						numKnownVerbs++;
+					} else {
+						if(!observations.containsKey(verb)) {
+							observations.put(verb, new LinkedHashMap<String, Integer>());
+						}
+						StatUtil.addToTally(observations.get(verb), toks[1], Integer.parseInt(toks[2].trim()));
+					}
+				}
+				line = reader.readLine();
+			}
+		} finally {
+			reader.close();
+		}
+		System.out.println("folding in " + observations.size() + " new verbs with " + method + " on " + numThreads
+				+ " threads, seed = " + seed + ", skipped " + numKnownVerbs + " rows of known verbs");
+
+		long startTime = System.nanoTime();
+		VerbFoldIn foldIn = new VerbFoldIn(model, method, 50.0 / model.getTopicCount());
+		Map<String, double[]> topicDists = foldIn.foldInAll(observations, numThreads, seed);
+		System.out.println("took " + (System.nanoTime() - startTime) / Math.pow(10, 9) + "s");
+
+		PrintWriter printWriter = new PrintWriter(args[4]);
+		for(Entry<String, double[]> entry : topicDists.entrySet()) {
+			printWriter.print(entry.getKey());
+			for(double p : entry.getValue()) {
+				printWriter.print("\t");
+				printWriter.print(p);
+			}
+			printWriter.println();
+		}
+		printWriter.close();
+	}
+}
@@ -0,0 +1,89 @@
+package util;
+
+import java.util.Random;
+
+/**
+ * Walker's alias method, built with Vose's O(k) algorithm.
+ * After an O(k) build, every draw from the discrete distribution costs O(1).
+ * The table can be rebuilt in place to avoid reallocating it for every new set of weights.
+ */
+public class AliasTable {
+	private double[] prob;
+	private int[] alias;
+	// the small and large worklists of build(), kept so that rebuilding doesn't allocate
+	private int[] work;
+	private int size;
+
+	public AliasTable() {
+		prob = new double[0];
+		alias = new int[0];
+		work = new int[0];
+	}
+
+	public AliasTable(double[] weights, int size) {
+		this();
+		build(weights, size);
+	}
+
+	/**
+	 * Prepare to sample i in [0, size) with probability weights[i] / sum{weights[0..size)}.
+	 * The weights must be non-negative and not all zero.
+	 */
+	public void build(double[] weights, int size) {
+		if(prob.length < size) {
+			prob = new double[size];
+			alias = new int[size];
+			work = new int[size];
+		}
+		this.size = size;
+
+		double sum = 0.0;
+		for(int i = 0; i < size; i++) {
+			sum += weights[i];
+		}
+
+		// small and large share one array, growing from opposite ends of [0, size)
+		int numSmall = 0;
+		int largeStart = size;
+		for(int i = 0; i < size; i++) {
+			prob[i] = weights[i] * size / sum;
+			if(prob[i] < 1.0) {
+				work[numSmall++] = i;
+			} else {
+				work[--largeStart] = i;
+			}
+		}
+
+		while(numSmall > 0 && largeStart < size) {
+			int small = work[--numSmall];
+			int large = work[largeStart++];
+			alias[small] = large;
+			prob[large] = (prob[large] + prob[small]) - 1.0;
+			if(prob[large] < 1.0) {
+				work[numSmall++] = large;
+			} else {
+				work[--largeStart] = large;
+			}
+		}
+
+		// whatever is left is 1 up to rounding errors
+		while(largeStart < size) {
+			prob[work[largeStart++]] = 1.0;
+		}
+		while(numSmall > 0) {
+			prob[work[--numSmall]] = 1.0;
+		}
+	}
+
+	/**
+	 * @return zero-indexed i, with probability weights[i] / sum{weights}
+	 */
+	public int sample(Random r) {
+		int i = r.nextInt(size);
+		return r.nextDouble() < prob[i] ? i : alias[i];
+	}
+
+	public int size() {
+		return size;
+	}
+}
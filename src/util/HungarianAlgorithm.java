@@ -0,0 +1,83 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * Minimum cost perfect matching in a square cost matrix (Kuhn-Munkres with potentials), in O(n^3).
+ */
+public class HungarianAlgorithm {
+	public static void main(String[] args) {
+		double[][] cost = {
+				{4, 1, 3},
+				{2, 0, 5},
+				{3, 2, 2}};
+		// the optimum is 1 + 2 + 2 = 5: row 0 -> 1, row 1 -> 0, row 2 -> 2
+		System.out.println(Arrays.toString(solve(cost)));
+	}
+
+	/**
+	 * @param cost - n x n, cost[i][j] = cost of matching row i with column j
+	 * @return [i] = the column matched with row i
+	 */
+	public static int[] solve(double[][] cost) {
+		int n = cost.length;
+		// 1-based, with row / column 0 as the sentinel of the augmenting path search
+		double[] rowPotential = new double[n + 1];
+		double[] colPotential = new double[n + 1];
+		int[] rowOfCol = new int[n + 1];
+		int[] previousCol = new int[n + 1];
+		double[] minSlack = new double[n + 1];
+		boolean[] visited = new boolean[n + 1];
+
+		for(int row = 1; row <= n; row++) {
+			if(cost[row - 1].length != n) {
+				throw new IllegalArgumentException("The cost matrix isn't square");
+			}
+			rowOfCol[0] = row;
+			int col = 0;
+			Arrays.fill(minSlack, Double.POSITIVE_INFINITY);
+			Arrays.fill(visited, false);
+			// grow an alternating tree from row until it reaches a free column
+			do {
+				visited[col] = true;
+				int curRow = rowOfCol[col];
+				double delta = Double.POSITIVE_INFINITY;
+				int nextCol = 0;
+				for(int j = 1; j <= n; j++) {
+					if(!visited[j]) {
+						double slack = cost[curRow - 1][j - 1] - rowPotential[curRow] - colPotential[j];
+						if(slack < minSlack[j]) {
+							minSlack[j] = slack;
+							previousCol[j] = col;
+						}
+						if(minSlack[j] < delta) {
+							delta = minSlack[j];
+							nextCol = j;
+						}
+					}
+				}
+				for(int j = 0; j <= n; j++) {
+					if(visited[j]) {
+						rowPotential[rowOfCol[j]] += delta;
+						colPotential[j] -= delta;
+					} else {
+						minSlack[j] -= delta;
+					}
+				}
+				col = nextCol;
+			} while(rowOfCol[col] != 0);
+			// flip the path
+			do {
+				int prev = previousCol[col];
+				rowOfCol[col] = rowOfCol[prev];
+				col = prev;
+			} while(col != 0);
+		}
+
+		int[] colOfRow = new int[n];
+		for(int j = 1; j <= n; j++) {
+			colOfRow[rowOfCol[j] - 1] = j - 1;
+		}
+		return colOfRow;
+	}
+}
@@ -0,0 +1,50 @@
+package util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A loop over the indices [from, to) run on a ForkJoinPool. The range is split in halves until the pieces
+ * are at most grain long, so that idle workers can steal the other halves of uneven ranges.
+ */
+public abstract class ParallelRange {
+	/**
+	 * The body of the loop for the indices [from, to), called from the worker threads.
+	 */
+	protected abstract void run(int from, int to);
+
+	/**
+	 * Run the loop on the threads of pool, or all of it on this thread if pool is null.
+	 */
+	public void invoke(ForkJoinPool pool, int from, int to, int grain) {
+		if(pool == null) {
+			run(from, to);
+		} else {
+			pool.invoke(new Task(from, to, Math.max(1, grain)));
+		}
+	}
+
+	private class Task extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+		private final int to;
+		private final int grain;
+
+		Task(int from, int to, int grain) {
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from <= grain) {
+				run(from, to);
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Task(from, mid, grain), new Task(mid, to, grain));
+			}
+		}
+	}
+}
@@ -2,6 +2,7 @@ package util;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 
 public class StatUtil {
 	public static void main(String[] args) {
@@ -14,22 +15,36 @@ public class StatUtil {
 	}
 	
 	/**
-	 * O(N) multinomial sampler
+	 * O(N) multinomial sampler, drawing from the calling thread's XoroshiroRandom.current()
 	 * @return zero-indexed i, with probability weights[i] / sum{weights}
 	 */
 	public static int sampleMultinomial(double[] weights) {
-		double[] sum = new double[weights.length];
-		sum[0] = weights[0];
-		for(int i = 1; i < weights.length; i++) {
-			sum[i] = weights[i] + sum[i-1];
+		return sampleMultinomial(weights, XoroshiroRandom.current().nextDouble());
+	}
+	
+	/**
+	 * Same as sampleMultinomial(weights), but draws from the given generator,
+	 * so that the draws are reproducible from its seed.
+	 */
+	public static int sampleMultinomial(double[] weights, Random rand) {
+		return sampleMultinomial(weights, rand.nextDouble());
+	}
+	
+	private static int sampleMultinomial(double[] weights, double uniform) {
+		// two passes over the weights rather than materializing their prefix sums
+		double total = 0.0;
+		for(int i = 0; i < weights.length; i++) {
+			total += weights[i];
 		}
 		
-		double rand = Math.random() * sum[sum.length-1];
-    for (int i = 0; i < weights.length; i++) {
-        if (rand <= sum[i])
-           return i;
-    }
-    return weights.length-1;
+		double rand = uniform * total;
+		double sum = 0.0;
+		for (int i = 0; i < weights.length; i++) {
+			sum += weights[i];
+			if (rand <= sum)
+				return i;
+		}
+		return weights.length-1;
 	}
 	
 	public static <K> void addToTally(Map<K, Integer> tally, K key, int val) {
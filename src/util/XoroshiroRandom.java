@@ -0,0 +1,124 @@
+package util;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.math3.random.RandomGenerator;
+
+/**
+ * xoroshiro128** (Blackman and Vigna, 2018): a small, fast generator with 128 bits of state.
+ *
+ * It is a java.util.Random, so it can be handed to anything that takes one, but unlike Random it keeps its
+ * state in plain fields instead of an AtomicLong, so it must not be shared between threads: give every thread
+ * its own, e.g. from split(). It is also a commons-math RandomGenerator, so distributions such as
+ * GammaDistribution can draw from it reproducibly.
+ *
+ * A 64-bit seed is expanded into the state with SplitMix64, so nearby seeds give unrelated streams.
+ */
+public class XoroshiroRandom extends Random implements RandomGenerator {
+	private static final long serialVersionUID = 1L;
+	private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+	private static final double DOUBLE_UNIT = 1.0 / (1L << 53);
+
+	// for the seeds of generators created without one
+	private static final AtomicLong seedUniquifier = new AtomicLong(System.nanoTime());
+
+	private static final ThreadLocal<XoroshiroRandom> current = new ThreadLocal<XoroshiroRandom>() {
+		@Override
+		protected XoroshiroRandom initialValue() {
+			return new XoroshiroRandom();
+		}
+	};
+
+	// set by setSeed, which Random's constructor calls, so these must not have initializers
+	private long s0;
+	private long s1;
+
+	public XoroshiroRandom() {
+		this(newSeed());
+	}
+
+	public XoroshiroRandom(long seed) {
+		super(seed);
+	}
+
+	/**
+	 * A generator of the calling thread, seeded from the clock, for code that has no generator passed in.
+	 */
+	public static XoroshiroRandom current() {
+		return current.get();
+	}
+
+	/**
+	 * A seed that differs between calls, for runs that weren't given one.
+	 */
+	public static long newSeed() {
+		return mix(seedUniquifier.addAndGet(GOLDEN_GAMMA) ^ System.nanoTime());
+	}
+
+	/**
+	 * A new generator, seeded from this one. Repeated splits of a generator with a known seed give the same
+	 * sequence of independent streams, which is how parallel workers get generators of their own.
+	 */
+	public XoroshiroRandom split() {
+		return new XoroshiroRandom(nextLong());
+	}
+
+	@Override
+	public void setSeed(long seed) {
+		// clears the cached Gaussian of Random
+		super.setSeed(seed);
+		s0 = mix(seed + GOLDEN_GAMMA);
+		s1 = mix(seed + 2 * GOLDEN_GAMMA);
+		if(s0 == 0 && s1 == 0) {
+			s1 = GOLDEN_GAMMA;
+		}
+	}
+
+	@Override
+	public void setSeed(int seed) {
+		setSeed((long) seed);
+	}
+
+	@Override
+	public void setSeed(int[] seed) {
+		long combined = 0;
+		for(int s : seed) {
+			combined = mix(combined + s);
+		}
+		setSeed(combined);
+	}
+
+	@Override
+	public long nextLong() {
+		long x = s0;
+		long y = s1;
+		long result = Long.rotateLeft(x * 5, 7) * 9;
+		y ^= x;
+		s0 = Long.rotateLeft(x, 24) ^ y ^ (y << 16);
+		s1 = Long.rotateLeft(y, 37);
+		return result;
+	}
+
+	@Override
+	public double nextDouble() {
+		return (nextLong() >>> 11) * DOUBLE_UNIT;
+	}
+
+	@Override
+	public int nextInt() {
+		return (int) (nextLong() >>> 32);
+	}
+
+	@Override
+	protected int next(int bits) {
+		return (int) (nextLong() >>> (64 - bits));
+	}
+
+	// the SplitMix64 finalizer
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}